@@ -0,0 +1,133 @@
+package com.xndp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.xndp.service.IBlogService;
+import com.xndp.service.IShopService;
+import com.xndp.service.IUserService;
+import com.xndp.utils.BloomFilters;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+//启动完成后从数据库重建店铺、笔记、用户id的布隆过滤器
+//两种模式都定时补加上次同步之后新增的id：本地模式兜底丢失的发布订阅消息，Redis模式兜底写bitmap失败的id
+@Slf4j
+@Component
+public class BloomFilterRunner implements ApplicationRunner {
+    @Resource
+    private BloomFilters bloomFilters;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private IBlogService blogService;
+    @Resource
+    private IUserService userService;
+
+    //每次分页查询的id数量
+    private static final int PAGE_SIZE = 1000;
+    //补加时从水位线往回多查的id数：自增id按分配顺序生成，但事务提交顺序可能不同，较小的id可能晚一点才出现
+    private static final long RESYNC_OVERLAP = 1000L;
+
+    //补加新增id的间隔，0表示不补加
+    @Value("${bloom.resync-seconds:60}")
+    private long resyncSeconds;
+
+    //过滤器名称 -> 已经加入过滤器的最大id(水位线)
+    private final Map<String, Long> watermarks = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService resyncScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @Override
+    public void run(ApplicationArguments args) {
+        rebuild(BloomFilters.SHOP, shopService);
+        rebuild(BloomFilters.BLOG, blogService);
+        rebuild(BloomFilters.USER, userService);
+        //没有启用或者重建失败时不会有水位线，resync直接跳过
+        if (resyncSeconds > 0) {
+            resyncScheduler.scheduleWithFixedDelay(() -> {
+                resync(BloomFilters.SHOP, shopService);
+                resync(BloomFilters.BLOG, blogService);
+                resync(BloomFilters.USER, userService);
+            }, resyncSeconds, resyncSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        resyncScheduler.shutdownNow();
+    }
+
+    private <T> void rebuild(String name, IService<T> service) {
+        try {
+            if (bloomFilters.needsRebuild(name)) {
+                long[] result = loadSince(name, service, 0);
+                watermarks.put(name, result[1]);
+                log.info("布隆过滤器{}重建完成，共{}个id", name, result[0]);
+            } else if (bloomFilters.isEnabled()) {
+                //Redis模式已经有完整的bitmap，从数据库当前最大id开始补加，补加时会再往回多查RESYNC_OVERLAP个
+                watermarks.put(name, maxId(service));
+            }
+            bloomFilters.markReady(name);
+        } catch (Exception e) {
+            //重建失败时不拦截任何请求
+            log.error("布隆过滤器{}重建失败", name, e);
+        }
+    }
+
+    //从水位线开始补加新增的id，没有重建成功的过滤器不拦截请求，不需要补加
+    private <T> void resync(String name, IService<T> service) {
+        Long watermark = watermarks.get(name);
+        if (watermark == null) {
+            return;
+        }
+        try {
+            long[] result = loadSince(name, service, Math.max(watermark - RESYNC_OVERLAP, 0));
+            watermarks.put(name, Math.max(watermark, result[1]));
+            log.debug("布隆过滤器{}补加{}个id，水位线{}", name, result[0], watermarks.get(name));
+        } catch (Exception e) {
+            log.debug("布隆过滤器{}补加异常！", name, e);
+        }
+    }
+
+    private <T> long maxId(IService<T> service) {
+        List<Object> ids = service.listObjs(new QueryWrapper<T>()
+                .select("id").orderByDesc("id").last("limit 1"));
+        return ids.isEmpty() ? 0 : ((Number) ids.get(0)).longValue();
+    }
+
+    /**
+     * 按id分页(where id > lastId)加载id，只查id列
+     *
+     * @return [加载的id数量, 最大id]
+     */
+    private <T> long[] loadSince(String name, IService<T> service, long lastId) {
+        long total = 0;
+        while (true) {
+            List<Long> ids = service.listObjs(new QueryWrapper<T>()
+                            .select("id").gt("id", lastId)
+                            .orderByAsc("id")
+                            .last("limit " + PAGE_SIZE))
+                    .stream().map(id -> ((Number) id).longValue()).collect(Collectors.toList());
+            bloomFilters.load(name, ids);
+            total += ids.size();
+            if (!ids.isEmpty()) {
+                lastId = ids.get(ids.size() - 1);
+            }
+            if (ids.size() < PAGE_SIZE) {
+                return new long[]{total, lastId};
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.xndp.config;
+
+import com.xndp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+//启动完成后预热秒杀库存，预热成功之前秒杀入口保持关闭，失败时由warmUp定时重试
+@Slf4j
+@Component
+public class SeckillWarmUpRunner implements ApplicationRunner {
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        try {
+            seckillVoucherService.warmUp(false);
+        } catch (Exception e) {
+            //不影响应用启动，warmUp里已经记录了错误并安排重试，也可以通过 POST /voucher/seckill/warm-up 手动重试
+            log.debug("秒杀库存预热失败，等待重试", e);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.xndp.config;
 
 import com.xndp.dto.Result;
+import com.xndp.utils.CacheBusyException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
@@ -12,6 +13,13 @@ import org.springframework.web.bind.annotation.RestControllerAdvice;
 @RestControllerAdvice
 public class WebExceptionAdvice {
 
+    //缓存雪崩时查数据库的请求被限流，不是程序错误，不打印堆栈
+    @ExceptionHandler(CacheBusyException.class)
+    public Result handleCacheBusyException(CacheBusyException e) {
+        log.warn(e.getMessage());
+        return Result.fail("服务繁忙，请稍后再试");
+    }
+
     @ExceptionHandler(RuntimeException.class)
     public Result handleRuntimeException(RuntimeException e) {
         log.error(e.toString(), e);
@@ -9,8 +9,10 @@ import com.xndp.entity.Blog;
 import com.xndp.entity.User;
 import com.xndp.service.IBlogService;
 import com.xndp.service.IUserService;
+import com.xndp.utils.ResponseCache;
 import com.xndp.utils.SystemConstants;
 import com.xndp.utils.UserHolder;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -29,6 +31,8 @@ public class BlogController {
 
     @Resource
     private IBlogService blogService;
+    @Resource
+    private ResponseCache responseCache;
 
     /**
      * 保存博客
@@ -69,10 +73,14 @@ public class BlogController {
         return blogService.queryMyBlog(current);
     }
 
-    //分页查询
+    //分页查询，未登录用户看到的内容相同(都没有点赞)，走响应缓存；登录用户的点赞状态不同，每次查询
     @GetMapping("/hot")
-    public Result queryHotBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
-        return blogService.queryHotBlog(current);
+    public ResponseEntity<?> queryHotBlog(@RequestParam(value = "current", defaultValue = "1") Integer current,
+                                          @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        if (UserHolder.getUser() != null) {
+            return ResponseEntity.ok(blogService.queryHotBlog(current));
+        }
+        return responseCache.get(ResponseCache.HOT_BLOG + current, ifNoneMatch, () -> blogService.queryHotBlog(current));
     }
 
     //根据id查询博客
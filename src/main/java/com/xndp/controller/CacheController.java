@@ -0,0 +1,43 @@
+package com.xndp.controller;
+
+import com.xndp.dto.Result;
+import com.xndp.utils.ResponseCache;
+import com.xndp.utils.cacheClient;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * <p>
+ * 缓存监控
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+    @Resource
+    private cacheClient cacheClient;
+    @Resource
+    private ResponseCache responseCache;
+
+    /**
+     * 查询本地缓存(L1)和Redis(L2)的命中情况
+     */
+    @GetMapping("stats")
+    public Result queryStats() {
+        Map<String, Object> stats = cacheClient.stats();
+        stats.put("response", responseCache.stats());
+        return Result.ok(stats);
+    }
+
+    /**
+     * 查询当前的热点key，热点key在每个节点本地有一份短期副本
+     */
+    @GetMapping("hot-keys")
+    public Result queryHotKeys() {
+        return Result.ok(cacheClient.hotKeys());
+    }
+}
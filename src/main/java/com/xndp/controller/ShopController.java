@@ -6,7 +6,10 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.xndp.dto.Result;
 import com.xndp.entity.Shop;
 import com.xndp.service.IShopService;
+import com.xndp.utils.BloomFilters;
+import com.xndp.utils.ResponseCache;
 import com.xndp.utils.SystemConstants;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -24,16 +27,22 @@ public class ShopController {
 
     @Resource
     public IShopService shopService;
+    @Resource
+    private BloomFilters bloomFilters;
+    @Resource
+    private ResponseCache responseCache;
 
     /**
      * 根据id查询商铺信息
      *
-     * @param id 商铺id
-     * @return 商铺详情数据
+     * @param id          商铺id
+     * @param ifNoneMatch 客户端缓存的ETag
+     * @return 商铺详情数据，走响应缓存
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
-        return shopService.queryById(id);
+    public ResponseEntity<byte[]> queryShopById(@PathVariable("id") Long id,
+                                                @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        return responseCache.get(ResponseCache.SHOP + id, ifNoneMatch, () -> shopService.queryById(id));
     }
 
     /**
@@ -46,6 +55,7 @@ public class ShopController {
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
         shopService.save(shop);
+        bloomFilters.add(BloomFilters.SHOP, shop.getId());
         // 返回店铺id
         return Result.ok(shop.getId());
     }
@@ -4,12 +4,16 @@ package com.xndp.controller;
 import com.xndp.dto.Result;
 import com.xndp.entity.ShopType;
 import com.xndp.service.IShopTypeService;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
  * <p>
@@ -24,8 +28,35 @@ public class ShopTypeController {
     @Resource
     private IShopTypeService typeService;
 
+    /**
+     * 店铺类型列表，直接返回内存快照中序列化好的JSON
+     */
     @GetMapping("list")
-    public Result queryTypeList() {
-        return typeService.queryType();
+    public ResponseEntity<byte[]> queryTypeList() {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(typeService.queryTypeJson());
+    }
+
+    /**
+     * 新增店铺类型
+     *
+     * @param shopType 店铺类型数据
+     * @return 店铺类型id
+     */
+    @PostMapping
+    public Result saveType(@RequestBody ShopType shopType) {
+        return typeService.saveType(shopType);
+    }
+
+    /**
+     * 修改店铺类型
+     *
+     * @param shopType 店铺类型数据
+     * @return 无
+     */
+    @PutMapping
+    public Result updateType(@RequestBody ShopType shopType) {
+        return typeService.updateType(shopType);
     }
 }
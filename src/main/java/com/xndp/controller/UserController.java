@@ -9,7 +9,9 @@ import com.xndp.entity.User;
 import com.xndp.entity.UserInfo;
 import com.xndp.service.IUserInfoService;
 import com.xndp.service.IUserService;
+import com.xndp.utils.CachePolicies;
 import com.xndp.utils.UserHolder;
+import com.xndp.utils.cacheClient;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
 
@@ -35,6 +37,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private cacheClient cacheClient;
+
     /**
      * 发送手机验证码
      */
@@ -90,12 +95,14 @@ public class UserController {
     // 根据id查询用户
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id") Long userId) {
-        // 查询详情
-        User user = userService.getById(userId);
-        if (user == null) {
+        // 按CachePolicies.USER查询，布隆过滤器判断一定不存在的id不查数据库
+        UserDTO userDTO = cacheClient.get(CachePolicies.USER, userId, UserDTO.class, id -> {
+            User user = userService.getById(id);
+            return user == null ? null : BeanUtil.copyProperties(user, UserDTO.class);
+        });
+        if (userDTO == null) {
             return Result.ok();
         }
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
         // 返回
         return Result.ok(userDTO);
     }
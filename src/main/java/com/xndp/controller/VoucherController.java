@@ -3,7 +3,10 @@ package com.xndp.controller;
 
 import com.xndp.dto.Result;
 import com.xndp.entity.Voucher;
+import com.xndp.service.ISeckillVoucherService;
 import com.xndp.service.IVoucherService;
+import com.xndp.utils.ResponseCache;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -21,6 +24,10 @@ public class VoucherController {
 
     @Resource
     private IVoucherService voucherService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private ResponseCache responseCache;
 
     /**
      * 新增普通券
@@ -31,6 +38,8 @@ public class VoucherController {
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
         voucherService.save(voucher);
+        //店铺的优惠券列表变了
+        responseCache.evict(ResponseCache.SHOP_VOUCHERS + voucher.getShopId());
         return Result.ok(voucher.getId());
     }
 
@@ -46,14 +55,39 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 预热秒杀库存，Redis数据丢失或者主从切换后手动触发
+     *
+     * @param force 是否重新加载所有未结束的秒杀券，默认只加载Redis中没有数据的
+     * @return 加载的秒杀券数量
+     */
+    @PostMapping("seckill/warm-up")
+    public Result warmUpSeckill(@RequestParam(value = "force", defaultValue = "false") Boolean force) {
+        return seckillVoucherService.warmUp(force);
+    }
+
+    /**
+     * 秒杀对账，比较Redis中的库存、下单用户和数据库
+     *
+     * @param repair 是否修复差异，默认只报告
+     * @return 每张券的对账结果
+     */
+    @PostMapping("seckill/reconcile")
+    public Result reconcileSeckill(@RequestParam(value = "repair", defaultValue = "false") Boolean repair) {
+        return seckillVoucherService.reconcile(repair);
+    }
+
     /**
      * 查询店铺的优惠券列表
      *
-     * @param shopId 店铺id
-     * @return 优惠券列表
+     * @param shopId      店铺id
+     * @param ifNoneMatch 客户端缓存的ETag
+     * @return 优惠券列表，走响应缓存
      */
     @GetMapping("/list/{shopId}")
-    public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
-        return voucherService.queryVoucherOfShop(shopId);
+    public ResponseEntity<byte[]> queryVoucherOfShop(@PathVariable("shopId") Long shopId,
+                                                     @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        return responseCache.get(ResponseCache.SHOP_VOUCHERS + shopId, ifNoneMatch,
+                () -> voucherService.queryVoucherOfShop(shopId));
     }
 }
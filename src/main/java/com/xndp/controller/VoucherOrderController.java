@@ -3,6 +3,7 @@ package com.xndp.controller;
 
 import com.xndp.dto.Result;
 import com.xndp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -28,4 +29,20 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.secKillVoucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单状态：QUEUED 排队中，PERSISTED 已落库，FAILED 失败
+     */
+    @GetMapping("{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    /**
+     * 查询秒杀订单的消费情况，用来评估消费者数量和批大小
+     */
+    @GetMapping("stats")
+    public Result queryDrainStats() {
+        return voucherOrderService.queryDrainStats();
+    }
 }
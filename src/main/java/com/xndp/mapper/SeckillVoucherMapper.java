@@ -2,6 +2,7 @@ package com.xndp.mapper;
 
 import com.xndp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
 
 /**
  * <p>
@@ -13,4 +14,8 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 一条语句查出 剩余库存 + 已落库订单数，同一个快照，不受并发下单影响
+     */
+    Long queryStockPlusOrders(@Param("voucherId") Long voucherId);
 }
@@ -2,6 +2,9 @@ package com.xndp.mapper;
 
 import com.xndp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行INSERT IGNORE，依赖(user_id, voucher_id)唯一索引跳过重复订单
+     *
+     * @return 实际插入的条数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
@@ -1,5 +1,6 @@
 package com.xndp.service;
 
+import com.xndp.dto.Result;
 import com.xndp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -13,4 +14,7 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    Result warmUp(boolean force);
+
+    Result reconcile(boolean repair);
 }
@@ -14,4 +14,13 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IShopTypeService extends IService<ShopType> {
     public Result queryType();
+
+    /**
+     * 店铺类型列表，序列化好的Result JSON
+     */
+    byte[] queryTypeJson();
+
+    Result saveType(ShopType shopType);
+
+    Result updateType(ShopType shopType);
 }
@@ -4,6 +4,8 @@ import com.xndp.dto.Result;
 import com.xndp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  * 服务类
@@ -16,5 +18,11 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result secKillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    String createVoucherOrder(VoucherOrder voucherOrder);
+
+    List<Long> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    Result queryOrderStatus(Long orderId);
+
+    Result queryDrainStats();
 }
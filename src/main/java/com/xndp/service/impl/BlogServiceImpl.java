@@ -9,15 +9,20 @@ import com.xndp.dto.ScrollResult;
 import com.xndp.dto.UserDTO;
 import com.xndp.entity.Blog;
 import com.xndp.entity.Follow;
-import com.xndp.entity.User;
 import com.xndp.mapper.BlogMapper;
 import com.xndp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.xndp.service.IFollowService;
 import com.xndp.service.IUserService;
+import com.xndp.utils.BloomFilters;
+import com.xndp.utils.CachePolicies;
+import com.xndp.utils.ResponseCache;
 import com.xndp.utils.SystemConstants;
 import com.xndp.utils.UserHolder;
+import com.xndp.utils.cacheClient;
 
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
@@ -26,6 +31,7 @@ import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -48,6 +54,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private BloomFilters bloomFilters;
+    @Resource
+    private cacheClient cacheClient;
+    @Resource
+    private ResponseCache responseCache;
 
 
     @Override
@@ -60,6 +72,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("新增笔记失败");
         }
+        bloomFilters.add(BloomFilters.BLOG, blog.getId());
+        //热门笔记列表变了，删除所有页的响应缓存
+        responseCache.evictPrefix(ResponseCache.HOT_BLOG);
         // 3.查询笔记作者的所有粉丝 查找数据库follow表 select * from tb_follow where follow_user_id = ?
         List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
         // 4.推送笔记给所有粉丝
@@ -111,17 +126,17 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os = 1;
             }
         }
-        // 5.根据id查询blog
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query()
-                .in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        // 5.根据id批量查询blog，结果和ids顺序一致；缓存中的对象是共享的，复制一份再设置用户和点赞信息
+        List<Blog> blogs = cacheClient.getBatch(CachePolicies.BLOG, ids, Blog.class, this::listByIds, Blog::getId)
+                .stream()
+                .filter(Objects::nonNull)
+                .map(blog -> BeanUtil.copyProperties(blog, Blog.class))
+                .collect(Collectors.toList());
         // 5.1.在拿到博客之后，我们需要查询博客的用户，和是否被点赞等信息
-        for (Blog blog : blogs) {
-            //5.1.1.查询博客有关用户
-            queryBlogUser(blog);
-            //5.1.2.查询blog是否被点赞
-            isBlogLiked(blog);
-        }
+        //5.1.1.批量查询博客有关用户
+        queryBlogUsers(blogs);
+        //5.1.2.批量查询blog是否被点赞
+        isBlogsLiked(blogs);
 
         // 6.封装并返回
         ScrollResult result = new ScrollResult();
@@ -158,13 +173,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            //查询用户
-            this.queryBlogUser(blog);
-            //判断是否点赞
-            this.isBlogLiked(blog);
-        });
+        // 批量查询用户
+        queryBlogUsers(records);
+        // 批量判断是否点赞
+        isBlogsLiked(records);
 
         return Result.ok(records);
     }
@@ -172,11 +184,13 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     //查询一篇博客
     @Override
     public Result queryBlogById(Long id) {
-        //1.查询博客
-        Blog blog = getById(id);
-        if (blog == null) {
+        //1.按CachePolicies.BLOG查询博客，布隆过滤器判断一定不存在的id不查数据库
+        Blog cached = cacheClient.get(CachePolicies.BLOG, id, Blog.class, this::getById);
+        if (cached == null) {
             return Result.fail("博客不存在");
         }
+        //缓存中的对象是共享的，复制一份再设置用户和点赞信息
+        Blog blog = BeanUtil.copyProperties(cached, Blog.class);
         //2.查询博客有关用户
         queryBlogUser(blog);
         //3.查询blog是否被点赞
@@ -200,6 +214,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 // 3.2.保存用户到Redis的set集合
                 //zadd key value score
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                // 3.3.点赞数变了，删除缓存和热门笔记的响应缓存
+                cacheClient.evict(CachePolicies.BLOG, id);
+                responseCache.evictPrefix(ResponseCache.HOT_BLOG);
             }
         } else {
             // 4.如果已点赞，取消点赞
@@ -208,6 +225,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             if (isSuccess) {
                 // 4.2.把用户从Redis的set集合移除
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                // 4.3.点赞数变了，删除缓存和热门笔记的响应缓存
+                cacheClient.evict(CachePolicies.BLOG, id);
+                responseCache.evictPrefix(ResponseCache.HOT_BLOG);
             }
         }
         return Result.ok();
@@ -246,10 +266,27 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     //查询用户
     private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+        queryBlogUsers(Collections.singletonList(blog));
+    }
+
+    //批量查询用户：一次MGET查缓存，未命中的用一次SQL查数据库，不再每篇博客查一次
+    private void queryBlogUsers(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        List<UserDTO> users = cacheClient.getBatch(CachePolicies.USER, userIds, UserDTO.class,
+                ids -> userService.listByIds(ids).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toList()),
+                UserDTO::getId);
+        for (int i = 0; i < blogs.size(); i++) {
+            UserDTO user = users.get(i);
+            if (user != null) {
+                blogs.get(i).setName(user.getNickName());
+                blogs.get(i).setIcon(user.getIcon());
+            }
+        }
     }
 
     private void isBlogLiked(Blog blog) {
@@ -267,4 +304,24 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         blog.setIsLike(score != null);
     }
 
+    //批量判断是否点赞，用管道一次发出所有ZSCORE
+    private void isBlogsLiked(List<Blog> blogs) {
+        UserDTO user = UserHolder.getUser();
+        if (user == null || blogs.isEmpty()) {
+            //说明用户未登录
+            return;
+        }
+        String userId = user.getId().toString();
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                conn.zScore(BLOG_LIKED_KEY + blog.getId(), userId);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
 }
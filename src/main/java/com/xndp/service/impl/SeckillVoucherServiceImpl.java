@@ -1,11 +1,49 @@
 package com.xndp.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.xndp.dto.Result;
 import com.xndp.entity.SeckillVoucher;
+import com.xndp.entity.VoucherOrder;
 import com.xndp.mapper.SeckillVoucherMapper;
+import com.xndp.mapper.VoucherOrderMapper;
 import com.xndp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.xndp.utils.SeckillOrderStatus;
+import com.xndp.utils.SeckillStock;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static com.xndp.utils.RedisConstants.LOCK_SECKILL_RECONCILE_KEY;
+import static com.xndp.utils.RedisConstants.LOCK_SECKILL_WARM_UP_KEY;
+import static com.xndp.utils.RedisConstants.SECKILL_SHARDS_KEY;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -14,7 +52,471 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStock seckillStock;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+
+    //每次分页查询已下单用户的条数
+    private static final int ORDER_PAGE_SIZE = 1000;
+    //启动时的预热等待其它节点正在进行的预热完成，最多等待的时间
+    private static final long WARM_UP_WAIT_SECONDS = 60L;
+
+    private static final DefaultRedisScript<List> SSCAN_SCRIPT;
+
+    static {
+        SSCAN_SCRIPT = new DefaultRedisScript<>();
+        SSCAN_SCRIPT.setLocation(new ClassPathResource("sscan.lua"));
+        SSCAN_SCRIPT.setResultType(List.class);
+    }
+
+    //对账间隔
+    @Value("${seckill.reconcile.interval-seconds:60}")
+    private long reconcileIntervalSeconds;
+    //定时对账时是否自动修复
+    @Value("${seckill.reconcile.repair:false}")
+    private boolean reconcileRepair;
+    //每张券每次对账，Redis和数据库两边各最多检查的用户数，没检查完的下次从上次的位置继续
+    @Value("${seckill.reconcile.scan-budget:10000}")
+    private int reconcileScanBudget;
+    //只在Redis中的用户，可能是订单还在消息队列里没有落库，超过这个时间仍然查不到才算差异
+    @Value("${seckill.reconcile.grace-seconds:300}")
+    private long reconcileGraceSeconds;
+    //预热失败后重试的间隔
+    @Value("${seckill.warm-up.retry-seconds:10}")
+    private long warmUpRetrySeconds;
+
+    //定时对账，预热失败后的重试也在这里执行
+    private final ScheduledExecutorService reconcileScheduler = Executors.newSingleThreadScheduledExecutor();
+    //同时只安排一次预热重试
+    private final AtomicBoolean warmUpRetryScheduled = new AtomicBoolean();
+    //优惠券id -> 对账进度
+    private final Map<Long, ReconcileState> reconcileStates = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        reconcileScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                Result result = reconcile(reconcileRepair);
+                log.debug("秒杀对账：{}", result.getData() != null ? result.getData() : result.getErrorMsg());
+            } catch (Exception e) {
+                log.debug("秒杀对账异常！", e);
+            }
+        }, reconcileIntervalSeconds, reconcileIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        reconcileScheduler.shutdownNow();
+    }
+
+    /**
+     * 秒杀库存预热：从数据库加载所有未结束秒杀券的剩余库存和已下单用户，写入Redis
+     * 消息队列中还没有落库的订单也要算上：用户记为已下单，库存减去这些订单
+     * 多个节点之间用分布式锁保证同时只有一个在预热
+     * 预热失败时恢复秒杀入口原来的状态，并在seckill.warm-up.retry-seconds之后重试；启动时没等到其它节点预热完成也会重试
+     *
+     * @param force false：只加载Redis中没有数据的秒杀券(启动、Redis数据丢失后)，其它节点正在预热时等它完成；
+     *              true：全部重新加载，期间所有节点暂停秒杀
+     * @return 加载的秒杀券数量
+     */
+    @Override
+    public Result warmUp(boolean force) {
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_WARM_UP_KEY);
+        boolean locked;
+        try {
+            locked = force ? lock.tryLock() : lock.tryLock(WARM_UP_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.fail("库存预热被中断");
+        }
+        if (!locked) {
+            if (!force && !seckillStock.isReady()) {
+                //启动时等了很久其它节点还没预热完，秒杀入口不能一直关着
+                scheduleWarmUpRetry(false);
+            }
+            return Result.fail("库存预热正在进行中");
+        }
+        boolean wasReady = seckillStock.isReady();
+        boolean done = false;
+        try {
+            if (force) {
+                //1.关闭所有节点的秒杀入口，等待没有收到广播的节点回查到预热标记、正在执行的秒杀脚本结束
+                seckillStock.setReady(false);
+                seckillStock.beginWarming();
+                Thread.sleep(2 * SeckillStock.WARMING_CHECK_MILLIS);
+            }
+            //2.查询所有还没结束的秒杀券
+            List<SeckillVoucher> vouchers = query().gt("end_time", LocalDateTime.now()).list();
+            //3.不强制时，跳过Redis中已经有库存的秒杀券
+            if (!force && !vouchers.isEmpty()) {
+                vouchers = missingInRedis(vouchers);
+            }
+            //4.消息队列中还没有落库的订单，要在查数据库之前读取：之后才落库的订单，查数据库时一定能查到
+            //预热必须算上所有排队的订单，不限制读取的条数
+            Map<Long, Map<Long, Long>> queued = vouchers.isEmpty() ? Collections.emptyMap()
+                    : seckillStock.queuedOrders(vouchers.stream().map(SeckillVoucher::getVoucherId)
+                    .collect(Collectors.toList()), Long.MAX_VALUE);
+            //5.逐个重建库存和下单用户
+            for (SeckillVoucher voucher : vouchers) {
+                restore(voucher, queued.getOrDefault(voucher.getVoucherId(), Collections.emptyMap()).keySet());
+            }
+            //6.打开秒杀入口
+            seckillStock.setReady(true);
+            done = true;
+            return Result.ok(vouchers.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.fail("库存预热被中断");
+        } catch (RuntimeException e) {
+            log.error("秒杀库存预热失败，{}秒后重试，force = {}", warmUpRetrySeconds, force, e);
+            scheduleWarmUpRetry(force);
+            throw e;
+        } finally {
+            if (!done) {
+                //没有预热完：恢复原来的秒杀入口状态，已经重建的秒杀券和没动过的秒杀券在Redis里都是完整的
+                seckillStock.setReady(wasReady);
+            }
+            if (force) {
+                seckillStock.endWarming();
+            }
+            lock.unlock();
+        }
+    }
+
+    private void scheduleWarmUpRetry(boolean force) {
+        if (!warmUpRetryScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            reconcileScheduler.schedule(() -> {
+                warmUpRetryScheduled.set(false);
+                try {
+                    Result result = warmUp(force);
+                    log.info("秒杀库存预热重试：{}", result.getData() != null ? result.getData() : result.getErrorMsg());
+                } catch (Exception e) {
+                    //warmUp里已经记录日志并安排了下一次重试
+                }
+            }, warmUpRetrySeconds, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            //应用正在关闭
+            warmUpRetryScheduled.set(false);
+        }
+    }
+
+    //数据库中的下单用户 + 队列中还没有落库的用户，库存减去还没有落库的订单
+    private void restore(SeckillVoucher voucher, Set<Long> queuedUsers) {
+        Long voucherId = voucher.getVoucherId();
+        //1.先查下单用户再查库存：两次查询之间落库的订单会被多扣一次库存(少卖，由对账修复)，而不会漏扣(超卖)
+        List<Long> userIds = queryOrderedUsers(voucherId);
+        SeckillVoucher latest = getById(voucherId);
+        int stock = latest == null ? voucher.getStock() : latest.getStock();
+        //2.还在队列中的订单
+        Set<Long> pending = new HashSet<>(queuedUsers);
+        userIds.forEach(pending::remove);
+        userIds.addAll(pending);
+        stock = Math.max(stock - pending.size(), 0);
+        seckillStock.restore(voucherId, stock, userIds, voucher.getBeginTime(), voucher.getEndTime());
+        log.info("秒杀券{}预热完成，库存{}，已下单用户{}，其中还没有落库{}", voucherId, stock, userIds.size(), pending.size());
+    }
+
+    //一次MGET查出哪些秒杀券在Redis中没有数据：没有分片数，或者单key模式下没有带hash tag的库存key
+    //只有老的seckill:stock:id(没有hash tag)的秒杀券也算缺失，预热时迁移到新key上
+    private List<SeckillVoucher> missingInRedis(List<SeckillVoucher> vouchers) {
+        List<String> keys = new ArrayList<>(vouchers.size() * 2);
+        for (SeckillVoucher voucher : vouchers) {
+            keys.add(SECKILL_SHARDS_KEY + voucher.getVoucherId());
+            keys.add(SeckillStock.stockKey(voucher.getVoucherId()));
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        List<SeckillVoucher> missing = new ArrayList<>();
+        for (int i = 0; i < vouchers.size(); i++) {
+            if (values == null) {
+                missing.add(vouchers.get(i));
+                continue;
+            }
+            String shards = values.get(2 * i);
+            boolean single = shards == null || "1".equals(shards);
+            if (single && values.get(2 * i + 1) == null) {
+                missing.add(vouchers.get(i));
+            }
+        }
+        return missing;
+    }
+
+    //按订单id分页(where id > lastId)查询已经下单的用户，避免深分页
+    private List<Long> queryOrderedUsers(Long voucherId) {
+        List<Long> userIds = new ArrayList<>();
+        long lastId = 0;
+        while (true) {
+            List<VoucherOrder> page = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId).gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + ORDER_PAGE_SIZE));
+            userIds.addAll(page.stream().map(VoucherOrder::getUserId).collect(Collectors.toList()));
+            if (page.size() < ORDER_PAGE_SIZE) {
+                return userIds;
+            }
+            lastId = page.get(page.size() - 1).getId();
+        }
+    }
+
+    /**
+     * 对账：比较Redis中的秒杀库存、下单用户和数据库中的库存、订单
+     * 1.总量：Redis的 库存 + 下单用户数 和数据库的 库存 + 订单数，两边在秒杀和落库过程中都保持不变，不相等说明库存有差异
+     * 2.只在Redis中的用户：SSCAN分批扫描，超过宽限时间仍然没有落库，并且订单不在消息队列中排队，说明订单被丢弃了，
+     * 修复时移除用户并归还库存
+     * 3.只在数据库中的用户：按订单id分页，SMISMEMBER批量检查，修复时补写到Redis
+     * 每次只检查有限的用户，游标保存在本地，下次接着检查；多个节点之间用分布式锁保证同时只有一个在对账
+     *
+     * @param repair 是否修复差异
+     * @return 每张券的对账结果
+     */
+    @Override
+    public Result reconcile(boolean repair) {
+        if (!seckillStock.isReady() || seckillStock.isWarming()) {
+            return Result.fail("库存还没有预热完成");
+        }
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_RECONCILE_KEY);
+        if (!lock.tryLock()) {
+            return Result.fail("其它节点正在对账");
+        }
+        try {
+            List<SeckillVoucher> vouchers = query().gt("end_time", LocalDateTime.now()).list();
+            //1.扫描Redis下单用户，找出超过宽限时间的疑似用户
+            Map<Long, Map<Long, Long>> expired = new HashMap<>();
+            for (SeckillVoucher voucher : vouchers) {
+                Long voucherId = voucher.getVoucherId();
+                Map<Long, Long> suspects = scanRedisOrders(voucherId,
+                        reconcileStates.computeIfAbsent(voucherId, id -> new ReconcileState()));
+                if (!suspects.isEmpty()) {
+                    expired.put(voucherId, suspects);
+                }
+            }
+            //2.有疑似用户时才读取消息队列中还在排队的订单，只看这些券，最多读scanBudget条
+            //要在查数据库确认之前读取：之后才确认的消息，查数据库时已经落库了
+            Map<Long, Map<Long, Long>> queued = expired.isEmpty() ? Collections.emptyMap()
+                    : seckillStock.queuedOrders(expired.keySet(), reconcileScanBudget);
+            //3.逐张券对账
+            Map<Long, Map<String, Object>> report = new LinkedHashMap<>();
+            for (SeckillVoucher voucher : vouchers) {
+                Long voucherId = voucher.getVoucherId();
+                report.put(voucherId, reconcile(voucherId, repair,
+                        expired.getOrDefault(voucherId, Collections.emptyMap()),
+                        queued == null ? null : queued.getOrDefault(voucherId, Collections.emptyMap())));
+            }
+            //已经结束的券不再对账
+            reconcileStates.keySet().retainAll(report.keySet());
+            return Result.ok(report);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param expired 超过宽限时间的疑似用户 -> 第一次发现的时间
+     * @param queued  还在消息队列中排队的用户 -> 订单id，为null表示队列太长没有读完，不知道哪些还在排队
+     */
+    private Map<String, Object> reconcile(Long voucherId, boolean repair, Map<Long, Long> expired, Map<Long, Long> queued) {
+        ReconcileState state = reconcileStates.get(voucherId);
+        Map<String, Object> report = new LinkedHashMap<>();
+        //1.只在Redis中的用户，订单还在消息队列中排队(消费者积压、等待重试)的不算差异
+        List<Long> redisOnly = new ArrayList<>();
+        int stillQueued = 0;
+        for (Long userId : confirmRedisOnly(voucherId, state, expired.keySet())) {
+            if (queued == null || isQueued(queued.get(userId))) {
+                //下次对账再检查，不用重新等宽限时间
+                state.suspects.put(userId, expired.get(userId));
+                stillQueued++;
+            } else {
+                redisOnly.add(userId);
+            }
+        }
+        report.put("redisOnly", redisOnly.size());
+        report.put("queued", stillQueued);
+        if (queued == null) {
+            report.put("queueScanIncomplete", true);
+        }
+        report.put("suspects", state.suspects.size());
+        if (repair) {
+            int released = 0;
+            for (Long userId : redisOnly) {
+                if (seckillStock.release(voucherId, userId)) {
+                    released++;
+                }
+            }
+            report.put("redisOnlyRepaired", released);
+            //归还了库存，清除所有节点上的售罄标记
+            if (released > 0) {
+                seckillStock.clearSoldOut(voucherId);
+            }
+        }
+        if (!redisOnly.isEmpty()) {
+            log.warn("秒杀券{}有{}个用户只在Redis中，订单没有落库：{}", voucherId, redisOnly.size(), redisOnly);
+        }
+        //2.只在数据库中的用户
+        List<Long> dbOnly = scanDbOrders(voucherId, state);
+        report.put("dbOnly", dbOnly.size());
+        if (!dbOnly.isEmpty()) {
+            log.warn("秒杀券{}有{}个用户只在数据库中：{}", voucherId, dbOnly.size(), dbOnly);
+            if (repair) {
+                seckillStock.addOrders(voucherId, dbOnly);
+                report.put("dbOnlyRepaired", dbOnly.size());
+            }
+        }
+        //3.总量，修复用户之后再比较；连续两次差异相同才认为是稳定的差异，避免两次读取之间的并发干扰
+        Long dbTotal = getBaseMapper().queryStockPlusOrders(voucherId);
+        long drift = seckillStock.stockPlusOrders(voucherId) - (dbTotal == null ? 0 : dbTotal);
+        report.put("stockDrift", drift);
+        if (drift != 0) {
+            log.warn("秒杀券{}的Redis库存比数据库多{}", voucherId, drift);
+            if (repair && drift == state.lastDrift) {
+                seckillStock.adjustStock(voucherId, -drift);
+                report.put("stockRepaired", -drift);
+                drift = 0;
+            }
+        }
+        state.lastDrift = drift;
+        return report;
+    }
+
+    //从上次的游标开始SSCAN，返回超过宽限时间仍然没有落库的疑似用户 -> 第一次发现的时间
+    private Map<Long, Long> scanRedisOrders(Long voucherId, ReconcileState state) {
+        int m = seckillStock.shardsOf(voucherId);
+        int scanned = 0;
+        while (scanned < reconcileScanBudget) {
+            if (state.shard >= m) {
+                state.shard = 0;
+            }
+            List<?> result = stringRedisTemplate.execute(
+                    SSCAN_SCRIPT,
+                    Collections.singletonList(seckillStock.orderKeyOf(voucherId, state.shard)),
+                    state.cursor, String.valueOf(ORDER_PAGE_SIZE));
+            List<Long> userIds = ((List<?>) result.get(1)).stream()
+                    .map(o -> Long.valueOf(o.toString())).collect(Collectors.toList());
+            scanned += userIds.size();
+            //数据库里查不到的用户先记为疑似
+            long now = System.currentTimeMillis();
+            for (Long userId : missingInDb(voucherId, userIds)) {
+                state.suspects.putIfAbsent(userId, now);
+            }
+            state.cursor = result.get(0).toString();
+            if ("0".equals(state.cursor)) {
+                //这个分片扫描完了
+                state.shard++;
+                if (state.shard >= m) {
+                    //一轮扫描完成，下次从头开始
+                    break;
+                }
+            }
+        }
+        long deadline = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(reconcileGraceSeconds);
+        Map<Long, Long> expired = new HashMap<>();
+        state.suspects.forEach((userId, since) -> {
+            if (since < deadline) {
+                expired.put(userId, since);
+            }
+        });
+        return expired;
+    }
+
+    //疑似用户超过宽限时间后再确认一次：已经落库或者已经不在Redis中的不算差异，确认过的用户移出疑似列表
+    private List<Long> confirmRedisOnly(Long voucherId, ReconcileState state, Collection<Long> suspects) {
+        int m = seckillStock.shardsOf(voucherId);
+        List<Long> expired = new ArrayList<>(suspects);
+        List<Long> confirmed = new ArrayList<>();
+        for (int from = 0; from < expired.size(); from += ORDER_PAGE_SIZE) {
+            List<Long> batch = expired.subList(from, Math.min(from + ORDER_PAGE_SIZE, expired.size()));
+            Set<Long> stillMissing = new HashSet<>(missingInDb(voucherId, batch));
+            Map<Long, List<Long>> byShard = batch.stream().filter(stillMissing::contains)
+                    .collect(Collectors.groupingBy(userId -> (long) (userId % m)));
+            byShard.forEach((shard, users) -> {
+                Map<Object, Boolean> members = stringRedisTemplate.opsForSet().isMember(
+                        seckillStock.orderKeyOf(voucherId, shard.intValue()), users.stream().map(String::valueOf).toArray());
+                for (Long userId : users) {
+                    if (Boolean.TRUE.equals(members.get(userId.toString()))) {
+                        confirmed.add(userId);
+                    }
+                }
+            });
+            batch.forEach(state.suspects::remove);
+        }
+        return confirmed;
+    }
+
+    //订单在消息队列中，并且状态不是已落库、已失败(状态过期查不到时按排队处理)
+    private boolean isQueued(Long orderId) {
+        if (orderId == null) {
+            return false;
+        }
+        String status = seckillOrderStatus.get(orderId);
+        return !SeckillOrderStatus.PERSISTED.equals(status) && !SeckillOrderStatus.FAILED.equals(status);
+    }
+
+    private List<Long> missingInDb(Long voucherId, List<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<Long> persisted = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                        .select("user_id")
+                        .eq("voucher_id", voucherId).in("user_id", userIds))
+                .stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        return userIds.stream().filter(userId -> !persisted.contains(userId)).collect(Collectors.toList());
+    }
+
+    //从上次的订单id开始分页，返回不在Redis下单用户集合中的用户
+    private List<Long> scanDbOrders(Long voucherId, ReconcileState state) {
+        int m = seckillStock.shardsOf(voucherId);
+        List<Long> missing = new ArrayList<>();
+        int scanned = 0;
+        while (scanned < reconcileScanBudget) {
+            List<VoucherOrder> page = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId).gt("id", state.lastOrderId)
+                    .orderByAsc("id")
+                    .last("limit " + ORDER_PAGE_SIZE));
+            scanned += page.size();
+            Map<Long, List<Long>> byShard = page.stream().map(VoucherOrder::getUserId)
+                    .collect(Collectors.groupingBy(userId -> (long) (userId % m)));
+            byShard.forEach((shard, users) -> {
+                Map<Object, Boolean> members = stringRedisTemplate.opsForSet().isMember(
+                        seckillStock.orderKeyOf(voucherId, shard.intValue()), users.stream().map(String::valueOf).toArray());
+                for (Long userId : users) {
+                    if (!Boolean.TRUE.equals(members.get(userId.toString()))) {
+                        missing.add(userId);
+                    }
+                }
+            });
+            if (page.size() < ORDER_PAGE_SIZE) {
+                //一轮扫描完成，下次从头开始
+                state.lastOrderId = 0;
+                break;
+            }
+            state.lastOrderId = page.get(page.size() - 1).getId();
+        }
+        return missing;
+    }
 
+    //一张秒杀券的对账进度，只在持有对账锁的线程里访问
+    private static class ReconcileState {
+        //Redis下单用户集合：当前分片和SSCAN游标
+        private int shard;
+        private String cursor = "0";
+        //数据库订单：上次检查到的订单id
+        private long lastOrderId;
+        //只在Redis中的疑似用户 -> 第一次发现的时间
+        private final Map<Long, Long> suspects = new HashMap<>();
+        //上一次的库存差异
+        private long lastDrift;
+    }
 }
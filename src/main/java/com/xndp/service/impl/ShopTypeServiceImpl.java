@@ -2,58 +2,173 @@ package com.xndp.service.impl;
 
 
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.xndp.dto.Result;
 import com.xndp.entity.ShopType;
 import com.xndp.mapper.ShopTypeMapper;
 import com.xndp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-import static com.xndp.utils.RedisConstants.CACHE_SHOP_TTL;
+import static com.xndp.utils.RedisConstants.SHOP_TYPE_CHANGED_CHANNEL;
+import static com.xndp.utils.RedisConstants.SHOP_TYPE_VERSION_KEY;
 
 /**
  * <p>
  * 服务实现类
  * </p>
+ * 店铺类型几乎不变，每个节点在内存中保存一份不可变的快照(排好序的列表 + 序列化好的响应)，首页直接返回快照的字节
+ * 修改店铺类型时Redis中的版本号加1，并通过发布订阅通知所有节点重新加载；定时比较版本号，兜底丢失的通知
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
-    /**
-     * 将首页，店铺类型，写入Redis缓存中，因为店铺类型一般是固定不变的
-     */
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+    //和Spring MVC返回JSON时使用同一个ObjectMapper，保证格式一致
+    @Resource
+    private ObjectMapper objectMapper;
+
+    //定时检查版本号的间隔
+    @Value("${shop-type.version-check-seconds:60}")
+    private long versionCheckSeconds;
+    private final ScheduledExecutorService versionChecker = Executors.newSingleThreadScheduledExecutor();
+
+    //当前快照，第一次查询时加载
+    private volatile Snapshot snapshot;
+
+    /**
+     * 店铺类型快照，创建后不再修改
+     */
+    private static class Snapshot {
+        //Redis中的版本号
+        private final long version;
+        private final List<ShopType> types;
+        //Result.ok(types)序列化后的JSON
+        private final byte[] json;
+
+        private Snapshot(long version, List<ShopType> types, byte[] json) {
+            this.version = version;
+            this.types = types;
+            this.json = json;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        //其它节点修改了店铺类型，消息内容是新的版本号
+        listenerContainer.addMessageListener((message, pattern) -> {
+            try {
+                refresh(Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8)));
+            } catch (Exception e) {
+                log.error("重新加载店铺类型失败", e);
+            }
+        }, new ChannelTopic(SHOP_TYPE_CHANGED_CHANNEL));
+        versionChecker.scheduleWithFixedDelay(() -> {
+            try {
+                refresh(readVersion());
+            } catch (Exception e) {
+                log.debug("检查店铺类型版本失败", e);
+            }
+        }, versionCheckSeconds, versionCheckSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        versionChecker.shutdownNow();
+    }
 
     @Override
     public Result queryType() {
-        //1.从redis中查找list页面信息
-        String key = "list";
-        //因为储存到Redis中的值是JSON类型的，所以拿到需要进行类型转换
-        String shopTypeJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否有缓存
-        if (StrUtil.isNotBlank(shopTypeJson)) {
-            //3.如果存在，直接返回
-            //想将其转化为JSON数组，然后在转换为list集合
-            List<ShopType> list = JSONUtil.parseArray(shopTypeJson).toList(ShopType.class);//将json转为list
-            return Result.ok(list);
+        return Result.ok(snapshot().types);
+    }
+
+    @Override
+    public byte[] queryTypeJson() {
+        return snapshot().json;
+    }
+
+    /**
+     * 新增店铺类型，通知所有节点重新加载
+     */
+    @Override
+    public Result saveType(ShopType shopType) {
+        save(shopType);
+        publishChange();
+        return Result.ok(shopType.getId());
+    }
+
+    /**
+     * 修改店铺类型，通知所有节点重新加载
+     */
+    @Override
+    public Result updateType(ShopType shopType) {
+        if (shopType.getId() == null) {
+            return Result.fail("店铺类型id不能为空");
+        }
+        updateById(shopType);
+        publishChange();
+        return Result.ok();
+    }
+
+    private Snapshot snapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            //第一次查询，加载快照
+            refresh(readVersion());
+            current = snapshot;
+        }
+        return current;
+    }
+
+    //1.版本号加1  2.本节点立即重新加载  3.通知其它节点
+    private void publishChange() {
+        Long version = stringRedisTemplate.opsForValue().increment(SHOP_TYPE_VERSION_KEY);
+        long newVersion = version == null ? 0 : version;
+        refresh(newVersion);
+        stringRedisTemplate.convertAndSend(SHOP_TYPE_CHANGED_CHANNEL, String.valueOf(newVersion));
+    }
+
+    private long readVersion() {
+        String version = stringRedisTemplate.opsForValue().get(SHOP_TYPE_VERSION_KEY);
+        return StrUtil.isBlank(version) ? 0 : Long.parseLong(version);
+    }
+
+    //快照的版本号和version不同时，从数据库重新加载(Redis数据丢失后版本号会变小，也要重新加载)
+    private synchronized void refresh(long version) {
+        Snapshot current = snapshot;
+        if (current != null && current.version == version) {
+            return;
         }
-        //4.如果没有，就去数据中查找，根据sort字段升序排名
-        List<ShopType> list = query().orderByAsc("sort").list();
-        if (list == null) {
-            //5.如果数据库中没有，直接返回错误
-            return Result.fail("查询失败！");
+        //1.去数据库中查找，根据sort字段升序排名
+        List<ShopType> types = Collections.unmodifiableList(query().orderByAsc("sort").list());
+        //2.序列化好响应，之后每次请求直接返回这些字节
+        byte[] json;
+        try {
+            json = objectMapper.writeValueAsBytes(Result.ok(types));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("店铺类型序列化失败", e);
         }
-        //6.查询成功，将其转换成JSON存到redis缓存中
-        String jsonStr = JSONUtil.toJsonStr(list);//list转JSON
-        //缓存过期时间是三十分钟
-        stringRedisTemplate.opsForValue().set(key, jsonStr, CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        //7.返回
-        return Result.ok(list);
+        //3.替换快照
+        snapshot = new Snapshot(version, types, json);
+        log.debug("店铺类型已加载，版本：{}，数量：{}", version, types.size());
     }
 }
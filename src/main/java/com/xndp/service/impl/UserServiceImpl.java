@@ -11,8 +11,11 @@ import com.xndp.dto.UserDTO;
 import com.xndp.entity.User;
 import com.xndp.mapper.UserMapper;
 import com.xndp.service.IUserService;
+import com.xndp.utils.BloomFilters;
+import com.xndp.utils.CachePolicies;
 import com.xndp.utils.RegexUtils;
 import com.xndp.utils.UserHolder;
+import com.xndp.utils.cacheClient;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.connection.BitFieldSubCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -21,9 +24,10 @@ import org.springframework.stereotype.Service;
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 
+import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Hasxnap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -44,6 +48,37 @@ import static com.xndp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
 public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IUserService {
     @Resource
     public StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private BloomFilters bloomFilters;
+    @Resource
+    private cacheClient cacheClient;
+
+    /**
+     * 用户的写操作都经过下面三个方法，写数据库之后删除CachePolicies.USER的缓存(Redis和所有节点的本地缓存)，
+     * 新注册的用户也要删：注册之前按这个id查询时可能缓存了空值
+     */
+    @Override
+    public boolean save(User user) {
+        boolean success = super.save(user);
+        if (success) {
+            cacheClient.evict(CachePolicies.USER, user.getId());
+        }
+        return success;
+    }
+
+    @Override
+    public boolean updateById(User user) {
+        boolean success = super.updateById(user);
+        cacheClient.evict(CachePolicies.USER, user.getId());
+        return success;
+    }
+
+    @Override
+    public boolean removeById(Serializable id) {
+        boolean success = super.removeById(id);
+        cacheClient.evict(CachePolicies.USER, id);
+        return success;
+    }
 
     @Override
     public Result sendCode(String phone, HttpSession session) {
@@ -100,6 +135,7 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             user = createUserWithPhone(phone);
             //写入数据库
             save(user);
+            bloomFilters.add(BloomFilters.USER, user.getId());
         }
 //        //6.将用户保存到session
 //        session.setAttribute("user",user);
@@ -110,7 +146,7 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         // 保护用户信息，仅存储部分信息，也减少内存消耗
         UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
         //工具类，将对象转为map，userDTO的id字段是long类型，这里需要自定义一下
-        Map<String, Object> userMap = BeanUtil.beanToMap(userDTO, new Hasxnap<>(),
+        Map<String, Object> userMap = BeanUtil.beanToMap(userDTO, new HashMap<>(),
                 CopyOptions.create()
                         .setIgnoreNullValue(true)
                         .setFieldValueEditor((fieldName, filedValue) -> filedValue.toString()));
@@ -6,30 +6,55 @@ import com.xndp.entity.VoucherOrder;
 import com.xndp.mapper.VoucherOrderMapper;
 import com.xndp.service.ISeckillVoucherService;
 import com.xndp.service.IVoucherOrderService;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.xndp.utils.RedisIdWorker;
+import com.xndp.utils.SeckillLimiter;
+import com.xndp.utils.SeckillOrderStatus;
+import com.xndp.utils.SeckillStock;
+import com.xndp.utils.StreamTrimmer;
 import com.xndp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.xndp.utils.RedisConstants.SECKILL_ORDER_STATUS_KEY;
+import static com.xndp.utils.RedisConstants.SECKILL_ORDER_STATUS_TTL;
 
 /**
  * <p>
@@ -42,98 +67,342 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private RedisIdWorker redisIdWorker;
-    @Resource
     private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillStock seckillStock;
+    @Resource
+    private StreamTrimmer streamTrimmer;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private SeckillLimiter seckillLimiter;
+    //自己的代理对象(事务)，启动时注入，消费者线程和恢复任务在没有处理过秒杀请求时也能使用
+    //@Lazy注入的是延迟代理，不会产生循环依赖
+    @Lazy
     @Resource
-    private RedissonClient redissonClient;
+    private IVoucherOrderService currentProxy;
+
+    //消息队列、死信队列、消费者组
+    private static final String QUEUE_NAME = "stream.orders";
+    private static final String DEAD_LETTER_QUEUE_NAME = "stream.orders.dlq";
+    private static final String GROUP_NAME = "g1";
+    //本节点的标识(pid@host)，消费者名称带上它，多个节点之间不会重名
+    private static final String NODE_NAME = ManagementFactory.getRuntimeMXBean().getName();
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> DEAD_LETTER_SCRIPT;
 
-    //采用静态代码块，在运行的时候，会提前加载脚本,提高性能
     static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        //设置脚本所在的位置
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        //设置返回值类型
-        SECKILL_SCRIPT.setResultType(Long.class);
+        DEAD_LETTER_SCRIPT = new DefaultRedisScript<>();
+        DEAD_LETTER_SCRIPT.setLocation(new ClassPathResource("dead_letter.lua"));
+        DEAD_LETTER_SCRIPT.setResultType(Long.class);
     }
 
-    //创建一个线程
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    //消费者读取失败后的退避时间，从MIN开始每次翻倍，最多MAX
+    private static final long MIN_BACKOFF_MILLIS = 100L;
+    private static final long MAX_BACKOFF_MILLIS = 5000L;
+
+    //消费者数量N
+    @Value("${seckill.order.consumers:4}")
+    private int consumerCount;
+    //每次XREADGROUP最多读取的条数K
+    @Value("${seckill.order.batch-size:50}")
+    private int batchSize;
+    //消息空闲超过这个时间，认为原消费者已经挂了，由恢复任务接管
+    @Value("${seckill.order.claim-idle-seconds:60}")
+    private long claimIdleSeconds;
+    //最大投递次数，超过后转入死信队列
+    @Value("${seckill.order.max-deliveries:5}")
+    private long maxDeliveries;
+    //清理已确认消息的间隔
+    @Value("${seckill.order.trim-interval-seconds:60}")
+    private long trimIntervalSeconds;
+
+    //消费者线程池，每个线程就是消费者组g1中的一个消费者
+    private ExecutorService seckillOrderExecutor;
+    //定时输出消费速率、接管其它消费者的pending消息
+    private final ScheduledExecutorService orderScheduler = Executors.newScheduledThreadPool(2);
+    //累计处理的订单数、批次数
+    private final AtomicLong drainedOrders = new AtomicLong();
+    private final AtomicLong drainedBatches = new AtomicLong();
+    private final AtomicLong lastReportedOrders = new AtomicLong();
+    //接管的消息数、转入死信队列的消息数
+    private final AtomicLong claimedOrders = new AtomicLong();
+    private final AtomicLong deadLetters = new AtomicLong();
+    //累计清理掉的已确认消息数
+    private final AtomicLong trimmedEntries = new AtomicLong();
+    //最近一次检查时，pending-list的长度和最长空闲时间
+    private volatile long pendingDepth;
+    private volatile long maxPendingIdleMillis;
+    //订单状态过期后异步回查数据库，同一个订单同时只回查一次，队列满了直接丢弃
+    private final ExecutorService statusBackfillExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1024), new ThreadPoolExecutor.DiscardPolicy());
+    private final Set<Long> backfilling = ConcurrentHashMap.newKeySet();
 
     @PostConstruct //当前类初始化完毕，就执行
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount);
+        for (int i = 1; i <= consumerCount; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(NODE_NAME + "-c" + i));
+        }
+        //每10秒报告一次消费速率，用来评估N和K的取值
+        orderScheduler.scheduleAtFixedRate(this::reportDrainRate, 10, 10, TimeUnit.SECONDS);
+        //每5秒检查一次pending-list
+        orderScheduler.scheduleWithFixedDelay(this::recoverPendingList, 5, 5, TimeUnit.SECONDS);
+        //定时清理已经确认的消息，防止stream无限增长
+        orderScheduler.scheduleWithFixedDelay(this::trimQueue, trimIntervalSeconds, trimIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        seckillOrderExecutor.shutdownNow();
+        orderScheduler.shutdownNow();
+        statusBackfillExecutor.shutdownNow();
+    }
+
+    private void reportDrainRate() {
+        long total = drainedOrders.get();
+        long delta = total - lastReportedOrders.getAndSet(total);
+        if (delta > 0) {
+            log.info("订单消费速率：{}条/秒，累计{}条，{}批，消费者{}个，批大小{}",
+                    delta / 10, total, drainedBatches.get(), consumerCount, batchSize);
+        }
     }
 
     private class VoucherOrderHandler implements Runnable {
-        String queueName = "stream.orders";
+        private final String consumerName;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
 
         @Override
         public void run() {
-            while (true) {
+            //连续失败时的等待时间，成功读到消息后清零
+            long backoff = 0;
+            while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    //1.获取消息队列中的订单信息 xreadgroup group g1 c1 count 1 block 2000 streams stream.order >
+                    //1.获取消息队列中的订单信息 xreadgroup group g1 c1 count K block 2000 streams stream.orders >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                            Consumer.from(GROUP_NAME, consumerName),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(QUEUE_NAME, ReadOffset.lastConsumed())
                     );
+                    backoff = 0;
                     //2.判断消息获取是否成功
                     if (list == null || list.isEmpty()) {
                         //如果获取失败，说明没有信息，进行下一次循环
                         continue;
                     }
-                    //3.解析消息中的订单信息
-                    MapRecord<String, Object, Object> entries = list.get(0);
-                    Map<Object, Object> values = entries.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWitxnap(values, new VoucherOrder(), true);
-                    //4.如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //ACK确认  xack stream.order g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", entries.getId());
+                    //3.整批下单并确认
+                    handleBatch(list);
                 } catch (Exception e) {
+                    //Redis不可用、主从切换时不能立刻重试，按指数退避等待，避免所有消费者线程空转
+                    backoff = backoff == 0 ? MIN_BACKOFF_MILLIS : Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                    log.warn("订单消费异常，{}毫秒后处理pending-list", backoff, e);
+                    if (!sleep(backoff)) {
+                        return;
+                    }
                     handlePendingList();
-                    log.debug("订单创建异常！", e);
                 }
             }
         }
 
+        /**
+         * 把自己pending-list里的消息从头到尾处理一遍
+         * 处理失败的消息跳过，留在pending-list里，由恢复任务按投递次数重试或转入死信队列，不会卡住消费
+         */
         private void handlePendingList() {
-            while (true) {
+            String lastId = "0";
+            while (!Thread.currentThread().isInterrupted()) {
+                List<MapRecord<String, Object, Object>> list;
                 try {
-                    //1.获取pending-list中的订单信息 xreadgroup group g1 c1 count 1 streams stream.order 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                    //1.获取pending-list中的订单信息 xreadgroup group g1 c1 count K streams stream.orders lastId
+                    list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(GROUP_NAME, consumerName),
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(QUEUE_NAME, ReadOffset.from(lastId))
                     );
-                    //2.判断消息获取是否成功
-                    if (list == null || list.isEmpty()) {
-                        //如果获取失败，说明pending-list没有信息，直接结束循环
-                        break;
-                    }
-                    //3.解析消息中的订单信息
-                    MapRecord<String, Object, Object> entries = list.get(0);
-                    Map<Object, Object> values = entries.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWitxnap(values, new VoucherOrder(), true);
-                    //4.如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //ACK确认  xack stream.order g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", entries.getId());
                 } catch (Exception e) {
-                    log.debug("pending-list订单创建异常！", e);
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException interruptedException) {
-                        interruptedException.printStackTrace();
-                    }
+                    //读取失败时lastId没有前进，在这里重试会空转，回到外层循环退避
+                    log.warn("读取pending-list异常！", e);
+                    return;
+                }
+                //2.判断消息获取是否成功
+                if (list == null || list.isEmpty()) {
+                    //如果获取失败，说明pending-list没有信息，直接结束循环
+                    break;
+                }
+                lastId = list.get(list.size() - 1).getId().getValue();
+                try {
+                    //3.整批下单并确认，失败的订单留在pending-list里，继续处理后面的
+                    handleBatch(list);
+                } catch (Exception e) {
+                    log.warn("pending-list订单创建异常！", e);
                 }
             }
         }
     }
 
+    //等待一段时间，被中断时返回false
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 一批消息在一个事务里落库，再用一次XACK确认整批
+     * 整批失败时退回到逐条处理，让问题订单留在pending-list里，不影响同批其它订单
+     */
+    private void handleBatch(List<? extends MapRecord<String, ?, ?>> list) {
+        //1.解析消息中的订单信息
+        List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+        RecordId[] recordIds = new RecordId[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            MapRecord<String, ?, ?> entries = list.get(i);
+            voucherOrders.add(BeanUtil.fillBeanWithMap(entries.getValue(), new VoucherOrder(), true));
+            recordIds[i] = entries.getId();
+        }
+        List<Long> duplicates;
+        try {
+            //2.整批下单
+            duplicates = currentProxy.createVoucherOrders(voucherOrders);
+        } catch (Exception e) {
+            log.warn("订单批量创建异常，改为逐条处理！", e);
+            handleOneByOne(list, voucherOrders);
+            return;
+        }
+        //3.ACK确认  xack stream.orders g1 id1 id2 ...
+        stringRedisTemplate.opsForStream().acknowledge(QUEUE_NAME, GROUP_NAME, recordIds);
+        drainedOrders.addAndGet(voucherOrders.size());
+        drainedBatches.incrementAndGet();
+        //4.订单状态改为已落库，订单id没有写入的改为重复下单
+        Set<Long> duplicated = new HashSet<>(duplicates);
+        markStatus(voucherOrders.stream().map(VoucherOrder::getId)
+                .filter(id -> !duplicated.contains(id)).collect(Collectors.toList()), SeckillOrderStatus.PERSISTED);
+        markStatus(duplicates, SeckillOrderStatus.DUPLICATE);
+    }
+
+    private void handleOneByOne(List<? extends MapRecord<String, ?, ?>> list, List<VoucherOrder> voucherOrders) {
+        int failed = 0;
+        //订单状态 -> 订单id
+        Map<String, List<Long>> statuses = new HashMap<>();
+        for (int i = 0; i < list.size(); i++) {
+            try {
+                VoucherOrder voucherOrder = voucherOrders.get(i);
+                String status = handleVoucherOrder(voucherOrder);
+                stringRedisTemplate.opsForStream().acknowledge(QUEUE_NAME, GROUP_NAME, list.get(i).getId());
+                drainedOrders.incrementAndGet();
+                statuses.computeIfAbsent(status, s -> new ArrayList<>()).add(voucherOrder.getId());
+            } catch (Exception e) {
+                failed++;
+                log.warn("订单{}创建异常！", voucherOrders.get(i).getId(), e);
+            }
+        }
+        drainedBatches.incrementAndGet();
+        statuses.forEach((status, orderIds) -> markStatus(orderIds, status));
+        if (failed > 0) {
+            //没有确认的订单还在pending-list中，交给调用方去重试
+            throw new IllegalStateException(failed + "条订单创建失败");
+        }
+    }
+
+    //状态只是给前端查询用的，写入失败不影响消费
+    private void markStatus(List<Long> orderIds, String status) {
+        try {
+            seckillOrderStatus.mark(orderIds, status);
+        } catch (Exception e) {
+            log.debug("订单状态写入异常！", e);
+        }
+    }
+
+    /**
+     * 恢复任务：接管空闲太久的pending消息(原消费者可能已经挂了)，投递次数超限的转入死信队列
+     */
+    private void recoverPendingList() {
+        try {
+            //1.整个消费者组的pending-list概况
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(QUEUE_NAME, GROUP_NAME);
+            pendingDepth = summary == null ? 0 : summary.getTotalPendingMessages();
+            if (pendingDepth == 0) {
+                maxPendingIdleMillis = 0;
+                removeIdleConsumers();
+                return;
+            }
+            //2.查看最早的一批pending消息 xpending stream.orders g1 - + K
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(QUEUE_NAME, GROUP_NAME, Range.unbounded(), batchSize);
+            Duration minIdle = Duration.ofSeconds(claimIdleSeconds);
+            long maxIdle = 0;
+            List<RecordId> toClaim = new ArrayList<>();
+            for (PendingMessage message : pending) {
+                Duration idle = message.getElapsedTimeSinceLastDelivery();
+                maxIdle = Math.max(maxIdle, idle.toMillis());
+                if (idle.compareTo(minIdle) < 0) {
+                    //原消费者可能还在处理
+                    continue;
+                }
+                if (message.getTotalDeliveryCount() >= maxDeliveries) {
+                    //3.投递次数超限，转入死信队列并确认
+                    stringRedisTemplate.execute(
+                            DEAD_LETTER_SCRIPT,
+                            Arrays.asList(QUEUE_NAME, DEAD_LETTER_QUEUE_NAME),
+                            GROUP_NAME, message.getIdAsString(), String.valueOf(message.getTotalDeliveryCount()),
+                            SECKILL_ORDER_STATUS_KEY, SECKILL_ORDER_STATUS_TTL.toString());
+                    deadLetters.incrementAndGet();
+                    log.error("订单消息{}投递{}次仍失败，已转入死信队列", message.getIdAsString(), message.getTotalDeliveryCount());
+                    continue;
+                }
+                toClaim.add(message.getId());
+            }
+            maxPendingIdleMillis = maxIdle;
+            if (toClaim.isEmpty()) {
+                return;
+            }
+            //4.接管到本节点的恢复消费者名下再处理 xclaim stream.orders g1 consumer minIdle id...
+            String recoveryConsumer = NODE_NAME + "-recovery";
+            List<StringRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                    ((StringRedisConnection) connection).xClaim(QUEUE_NAME, GROUP_NAME, recoveryConsumer,
+                            minIdle, toClaim.toArray(new RecordId[0])));
+            if (claimed == null || claimed.isEmpty()) {
+                return;
+            }
+            claimedOrders.addAndGet(claimed.size());
+            log.info("接管了{}条空闲的pending消息", claimed.size());
+            handleBatch(claimed);
+        } catch (Exception e) {
+            log.warn("pending-list恢复异常！", e);
+        }
+    }
+
+    private void trimQueue() {
+        try {
+            long trimmed = streamTrimmer.trimAcknowledged(QUEUE_NAME);
+            if (trimmed > 0) {
+                trimmedEntries.addAndGet(trimmed);
+                log.debug("清理了{}条已确认的订单消息", trimmed);
+            }
+        } catch (Exception e) {
+            log.debug("订单消息清理异常！", e);
+        }
+    }
+
+    //删除已经没有pending消息、并且长时间不活跃的消费者(比如已经下线的节点)
+    private void removeIdleConsumers() {
+        StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(QUEUE_NAME, GROUP_NAME);
+        consumers.forEach(consumer -> {
+            if (consumer.pendingCount() == 0 && consumer.idleTimeMs() > TimeUnit.HOURS.toMillis(1)
+                    && !consumer.consumerName().startsWith(NODE_NAME + "-")) {
+                stringRedisTemplate.opsForStream().deleteConsumer(QUEUE_NAME, Consumer.from(GROUP_NAME, consumer.consumerName()));
+            }
+        });
+    }
+
     //阻塞队列,需要赋值初始空间
 //    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
 //    private class VoucherOrderHandler implements Runnable{
@@ -154,56 +423,58 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
 //    }
     //因为此业务是异步处理的，不再需要返回给前端
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //1.获取用户id
-        Long userId = voucherOrder.getUserId();
-        //创建锁对象
-        RLock lock = redissonClient.getLock("order:" + userId);//使用Redisson的方法
-        //尝试获取锁
-        boolean success = lock.tryLock();//无参情况是，默认不等待，三十秒超时时间
-        if (!success) {
-            //如果获取锁失败
-            log.debug("一人限购一单！");
-            return;
-        }
-        try {
-            //获取代理对象(事务)
-            //通过所在方法，和调用方法，都是在实现IVoucherOrderService接口里的方法，这样事务才不会实效
-            currentProxy.createVoucherOrder(voucherOrder);//方法执行完，事务提交，然后再释放锁
-        } finally {
-            //释放锁
-            lock.unlock();
-        }
+    //不再加分布式锁：Lua脚本已经保证一人一单，数据库(user_id, voucher_id)唯一索引保证重复投递时幂等
+    private String handleVoucherOrder(VoucherOrder voucherOrder) {
+        //获取代理对象(事务)
+        //通过所在方法，和调用方法，都是在实现IVoucherOrderService接口里的方法，这样事务才不会实效
+        return currentProxy.createVoucherOrder(voucherOrder);
     }
 
-    //全局变量
-    private IVoucherOrderService currentProxy;
-
     //根据Redis的Stream数据类型，实现异步下单
     @Override
     public Result secKillVoucher(Long voucherId) {
+        //库存还没有预热完成
+        if (!seckillStock.isReady()) {
+            return Result.fail("秒杀活动准备中，请稍后重试");
+        }
+        //本地已经标记售罄，直接返回，不再执行脚本
+        if (seckillStock.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        //准入限流，超出剩余库存太多的请求不再执行脚本
+        if (!seckillLimiter.tryAcquire(voucherId)) {
+            return Result.fail("抢购人数过多，请稍后重试");
+        }
         //获取用户id
         Long userId = UserHolder.getUser().getId();
-        //订单id
-        long orderID = redisIdWorker.nextId("order");
-        // 1.执行Lua脚本，尝试判断用户是否有购买资格
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderID));
-        int r = result.intValue();
-        // 2.判断结果是否为0
-        if (r != 0) {
-            // 2.1.不为0，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+        // 1.执行Lua脚本，尝试判断用户是否有购买资格(单key或分片库存)，有资格时生成订单id并发送消息
+        long orderID = seckillStock.tryAcquire(voucherId, userId);
+        // 2.判断结果是否为负数
+        if (orderID < 0) {
+            // 2.1.负数代表没有购买资格
+            return Result.fail(seckillFailMessage(orderID));
         }
 
-        //3获取代理对象(事务)
-        currentProxy = (IVoucherOrderService) AopContext.currentProxy();
-        // 4.返回订单id
+        // 3.返回订单id
         return Result.ok(orderID);
     }
 
+    private static String seckillFailMessage(long code) {
+        if (code == -2) {
+            return "不能重复下单";
+        }
+        if (code == -4) {
+            return "秒杀还未开始！";
+        }
+        if (code == -5) {
+            return "秒杀已经结束！";
+        }
+        if (code == -6) {
+            return "秒杀活动准备中，请稍后重试";
+        }
+        return "库存不足";
+    }
+
     //    //根据Redis完成秒杀资格的判断
 //    @Override
 //    public Result secKillVoucher(Long voucherId) {
@@ -241,18 +512,18 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        // 4.返回订单id
 //        return Result.ok(orderID);
 //    }
-    //异步执行，所以不用返回值
+    //异步执行，返回订单状态：P 已落库，F 库存不足，D 用户已经有另一笔订单，这个订单id没有写入
     @Transactional//因为有两张表的操作，加上事务
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        //5.一人一单
-        //5.1根据优惠券id和用户id查订单表，得到数量count
-        Long userId = voucherOrder.getUserId();//因为是另开一个子线程来执行当前业务的，所以不能再采用ThreadLocal来获取
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        //5.2count是否大于0
-        if (count > 0) {
-            //说明用户之前购买了
+    public String createVoucherOrder(VoucherOrder voucherOrder) {
+        //5.一人一单，INSERT IGNORE，已经存在(user_id, voucher_id)相同的订单时不插入
+        int inserted = getBaseMapper().insertIgnoreBatch(Collections.singletonList(voucherOrder));
+        if (inserted == 0) {
+            //重复投递的消息：这个订单id之前已经落库；否则是用户之前用别的订单买过了
+            if (getById(voucherOrder.getId()) != null) {
+                return SeckillOrderStatus.PERSISTED;
+            }
             log.debug("一人限购一张,请勿重复购买！");
-            return;
+            return SeckillOrderStatus.DUPLICATE;
         }
         // 6.扣减库存
         boolean success = seckillVoucherService.update()
@@ -260,12 +531,103 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0)//where id = ? and stock > 0
                 .update();
         if (!success) {
-            //如果扣减库存失败
+            //如果扣减库存失败，回滚刚插入的订单
             log.debug("优惠券已经售完！");
-            return;
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return SeckillOrderStatus.FAILED;
+        }
+        return SeckillOrderStatus.PERSISTED;
+    }
+
+    //批量异步下单：每张券一条多行INSERT IGNORE、按实际插入的条数扣减一次库存
+    //返回因为一人一单没有写入的订单id(用户已经有另一笔订单)，重复投递、之前已经落库的订单不算
+    @Override
+    @Transactional
+    public List<Long> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Map<Long, List<VoucherOrder>> byVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        List<Long> duplicates = new ArrayList<>();
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            //1.一人一单，重复的订单(包括重复投递的消息)由唯一索引跳过
+            int inserted = getBaseMapper().insertIgnoreBatch(entry.getValue());
+            if (inserted < entry.getValue().size()) {
+                //有订单被跳过，按订单id回查哪些真正写进了数据库
+                duplicates.addAll(notPersisted(entry.getValue()));
+            }
+            if (inserted == 0) {
+                continue;
+            }
+            //2.按优惠券聚合扣减库存 set stock = stock - n where voucher_id = ? and stock >= n
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", entry.getKey()).ge("stock", inserted)
+                    .update();
+            if (!success) {
+                //库存不够整批扣减，回滚整批，由调用方逐条处理
+                throw new IllegalStateException("优惠券" + entry.getKey() + "库存不足，无法整批下单");
+            }
         }
-        save(voucherOrder);//将订单保存到数据库
+        return duplicates;
+    }
+
+    //数据库里查不到的订单id
+    private List<Long> notPersisted(List<VoucherOrder> voucherOrders) {
+        List<Long> orderIds = voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        Set<Long> persisted = new HashSet<>(listObjs(new QueryWrapper<VoucherOrder>().select("id").in("id", orderIds),
+                id -> Long.valueOf(id.toString())));
+        return orderIds.stream().filter(id -> !persisted.contains(id)).collect(Collectors.toList());
+    }
 
+    /**
+     * 查询秒杀订单状态，只读Redis
+     * Redis里没有记录时(状态已过期)，异步回查数据库补写状态，本次先返回查询中
+     */
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        String status = seckillOrderStatus.get(orderId);
+        if (status != null) {
+            return Result.ok(SeckillOrderStatus.describe(status));
+        }
+        if (backfilling.add(orderId)) {
+            try {
+                statusBackfillExecutor.execute(() -> backfillStatus(orderId));
+            } catch (RejectedExecutionException e) {
+                backfilling.remove(orderId);
+            }
+        }
+        return Result.fail("订单状态查询中，请稍后重试");
+    }
+
+    private void backfillStatus(Long orderId) {
+        try {
+            //只有落库的订单才能在数据库里查到，查不到的不写，避免不存在的订单id占用内存
+            if (getById(orderId) != null) {
+                seckillOrderStatus.markPersisted(Collections.singletonList(orderId));
+            }
+        } catch (Exception e) {
+            log.debug("订单状态回查异常！", e);
+        } finally {
+            backfilling.remove(orderId);
+        }
+    }
+
+    @Override
+    public Result queryDrainStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("consumers", consumerCount);
+        stats.put("batchSize", batchSize);
+        stats.put("drainedOrders", drainedOrders.get());
+        stats.put("drainedBatches", drainedBatches.get());
+        stats.put("pendingDepth", pendingDepth);
+        stats.put("maxPendingIdleMillis", maxPendingIdleMillis);
+        stats.put("claimedOrders", claimedOrders.get());
+        stats.put("deadLetters", deadLetters.get());
+        stats.put("trimmedEntries", trimmedEntries.get());
+        stats.put("streamLength", stringRedisTemplate.opsForStream().size(QUEUE_NAME));
+        stats.put("streamMemoryBytes", streamTrimmer.memoryUsage(QUEUE_NAME));
+        stats.put("deadLetterLength", stringRedisTemplate.opsForStream().size(DEAD_LETTER_QUEUE_NAME));
+        stats.put("limiter", seckillLimiter.stats());
+        return Result.ok(stats);
     }
     //根据数据库完成秒杀资格的判断
 //    @Override
@@ -7,16 +7,14 @@ import com.xndp.mapper.VoucherMapper;
 import com.xndp.entity.SeckillVoucher;
 import com.xndp.service.ISeckillVoucherService;
 import com.xndp.service.IVoucherService;
-import com.xndp.utils.RedisData;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.xndp.utils.ResponseCache;
+import com.xndp.utils.SeckillStock;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.xndp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * <p>
  * 服务实现类
@@ -28,7 +26,9 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStock seckillStock;
+    @Resource
+    private ResponseCache responseCache;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -50,8 +50,9 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //将优惠券库存，写入Redis
-        stringRedisTemplate.opsForValue()
-                .set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        //将优惠券库存和秒杀时间，写入Redis(按配置决定是否分片)
+        seckillStock.init(voucher.getId(), voucher.getStock(), voucher.getBeginTime(), voucher.getEndTime());
+        //店铺的优惠券列表变了
+        responseCache.evict(ResponseCache.SHOP_VOUCHERS + voucher.getShopId());
     }
 }
@@ -0,0 +1,432 @@
+package com.xndp.utils;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 二进制编解码，按字段的声明类型写值，不写字段名
+ * 1.对象：schema哈希(4字节) + 空值位图 + 按字段名排序的非空字段值，字段增删改之后哈希变化，旧数据解码失败当作缓存未命中
+ * 2.整数用zigzag变长编码，时间写成UTC秒数 + 纳秒，字符串写长度 + UTF-8
+ * 3.Object类型的字段(比如RedisData.data)先写一个类型标记，项目内的实体(和实体数组)再写类名
+ * 4.对象数组(比如ShopType[])：长度 + 每个元素是否为空 + 元素
+ * 只解析com.xndp包下的类，集合等其它类型退回JSON
+ */
+public class BinaryCacheCodec implements CacheCodec {
+    public static final byte ID = 2;
+
+    private static final String BEAN_PACKAGE = "com.xndp.";
+
+    //Object类型字段中值的类型标记
+    private static final byte T_NULL = 0;
+    private static final byte T_LONG = 1;
+    private static final byte T_INTEGER = 2;
+    private static final byte T_STRING = 3;
+    private static final byte T_DOUBLE = 4;
+    private static final byte T_BOOLEAN = 5;
+    private static final byte T_DATE_TIME = 6;
+    private static final byte T_BEAN = 7;
+    private static final byte T_JSON = 8;
+    private static final byte T_BEAN_ARRAY = 9;
+
+    //类 -> 字段信息
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+    //类名 -> 类，只缓存com.xndp包下的类
+    private final Map<String, Class<?>> beanClasses = new ConcurrentHashMap<>();
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Output out = new Output();
+        writeValue(out, value.getClass(), value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return type.cast(readValue(new Input(bytes), type, type));
+    }
+
+    private void writeValue(Output out, Class<?> type, Object value) {
+        if (type == Long.class || type == long.class) {
+            out.writeVarLong(zigzag((Long) value));
+        } else if (type == Integer.class || type == int.class) {
+            out.writeVarLong(zigzag((Integer) value));
+        } else if (type == Short.class || type == short.class) {
+            out.writeVarLong(zigzag((Short) value));
+        } else if (type == Byte.class || type == byte.class) {
+            out.writeByte((Byte) value);
+        } else if (type == Boolean.class || type == boolean.class) {
+            out.writeByte((Boolean) value ? 1 : 0);
+        } else if (type == Double.class || type == double.class) {
+            out.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (type == Float.class || type == float.class) {
+            out.writeInt(Float.floatToRawIntBits((Float) value));
+        } else if (type == String.class) {
+            out.writeString((String) value);
+        } else if (type == LocalDateTime.class) {
+            LocalDateTime time = (LocalDateTime) value;
+            out.writeVarLong(zigzag(time.toEpochSecond(ZoneOffset.UTC)));
+            out.writeVarLong(time.getNano());
+        } else if (type == Object.class) {
+            writeTagged(out, value);
+        } else if (isObjectArray(type)) {
+            Object[] array = (Object[]) value;
+            Class<?> component = type.getComponentType();
+            out.writeVarLong(array.length);
+            for (Object element : array) {
+                out.writeByte(element == null ? 0 : 1);
+                if (element != null) {
+                    writeValue(out, component, element);
+                }
+            }
+        } else if (isBean(type)) {
+            writeBean(out, value);
+        } else if (isJson(type)) {
+            out.writeString(JSONUtil.toJsonStr(value));
+        } else {
+            //BigDecimal、枚举等，按字符串写
+            out.writeString(value.toString());
+        }
+    }
+
+    private Object readValue(Input in, Class<?> type, Type genericType) {
+        if (type == Long.class || type == long.class) {
+            return unzigzag(in.readVarLong());
+        } else if (type == Integer.class || type == int.class) {
+            return (int) unzigzag(in.readVarLong());
+        } else if (type == Short.class || type == short.class) {
+            return (short) unzigzag(in.readVarLong());
+        } else if (type == Byte.class || type == byte.class) {
+            return in.readByte();
+        } else if (type == Boolean.class || type == boolean.class) {
+            return in.readByte() != 0;
+        } else if (type == Double.class || type == double.class) {
+            return Double.longBitsToDouble(in.readLong());
+        } else if (type == Float.class || type == float.class) {
+            return Float.intBitsToFloat(in.readInt());
+        } else if (type == String.class) {
+            return in.readString();
+        } else if (type == LocalDateTime.class) {
+            long seconds = unzigzag(in.readVarLong());
+            return LocalDateTime.ofEpochSecond(seconds, (int) in.readVarLong(), ZoneOffset.UTC);
+        } else if (type == Object.class) {
+            return readTagged(in);
+        } else if (isObjectArray(type)) {
+            Class<?> component = type.getComponentType();
+            Object[] array = (Object[]) Array.newInstance(component, (int) in.readVarLong());
+            for (int i = 0; i < array.length; i++) {
+                if (in.readByte() != 0) {
+                    array[i] = readValue(in, component, component);
+                }
+            }
+            return array;
+        } else if (isBean(type)) {
+            return readBean(in, type);
+        } else if (isJson(type)) {
+            return JSONUtil.parse(in.readString()).toBean(genericType);
+        } else {
+            return Convert.convert(type, in.readString());
+        }
+    }
+
+    //声明类型是Object时，先写类型标记
+    private void writeTagged(Output out, Object value) {
+        if (value == null) {
+            out.writeByte(T_NULL);
+            return;
+        }
+        Class<?> type = value.getClass();
+        if (type == Long.class) {
+            out.writeByte(T_LONG);
+        } else if (type == Integer.class) {
+            out.writeByte(T_INTEGER);
+        } else if (type == String.class) {
+            out.writeByte(T_STRING);
+        } else if (type == Double.class) {
+            out.writeByte(T_DOUBLE);
+        } else if (type == Boolean.class) {
+            out.writeByte(T_BOOLEAN);
+        } else if (type == LocalDateTime.class) {
+            out.writeByte(T_DATE_TIME);
+        } else if (isBean(type)) {
+            out.writeByte(T_BEAN);
+            out.writeString(type.getName());
+        } else if (type.isArray() && isBean(type.getComponentType())) {
+            out.writeByte(T_BEAN_ARRAY);
+            out.writeString(type.getComponentType().getName());
+        } else {
+            //其它类型只保留JSON结构，读出来是JSONObject、JSONArray
+            out.writeByte(T_JSON);
+            out.writeString(JSONUtil.toJsonStr(value));
+            return;
+        }
+        writeValue(out, type, value);
+    }
+
+    private Object readTagged(Input in) {
+        byte tag = in.readByte();
+        switch (tag) {
+            case T_NULL:
+                return null;
+            case T_LONG:
+                return readValue(in, Long.class, Long.class);
+            case T_INTEGER:
+                return readValue(in, Integer.class, Integer.class);
+            case T_STRING:
+                return in.readString();
+            case T_DOUBLE:
+                return readValue(in, Double.class, Double.class);
+            case T_BOOLEAN:
+                return readValue(in, Boolean.class, Boolean.class);
+            case T_DATE_TIME:
+                return readValue(in, LocalDateTime.class, LocalDateTime.class);
+            case T_BEAN:
+                return readBean(in, beanClass(in.readString()));
+            case T_JSON:
+                return JSONUtil.parse(in.readString());
+            case T_BEAN_ARRAY:
+                Class<?> component = beanClass(in.readString());
+                return readValue(in, Array.newInstance(component, 0).getClass(), null);
+            default:
+                throw new IllegalStateException("未知的类型标记：" + tag);
+        }
+    }
+
+    private void writeBean(Output out, Object bean) {
+        Schema schema = schema(bean.getClass());
+        Field[] fields = schema.fields;
+        Object[] values = new Object[fields.length];
+        byte[] bitmap = new byte[(fields.length + 7) / 8];
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = fields[i].get(bean);
+                if (values[i] != null) {
+                    bitmap[i >> 3] |= 1 << (i & 7);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        out.writeInt(schema.hash);
+        out.writeBytes(bitmap);
+        for (int i = 0; i < fields.length; i++) {
+            if (values[i] != null) {
+                writeValue(out, fields[i].getType(), values[i]);
+            }
+        }
+    }
+
+    private Object readBean(Input in, Class<?> type) {
+        Schema schema = schema(type);
+        if (in.readInt() != schema.hash) {
+            throw new IllegalStateException(type.getName() + "的字段已经变化，缓存需要重建");
+        }
+        Field[] fields = schema.fields;
+        byte[] bitmap = in.readBytes((fields.length + 7) / 8);
+        try {
+            Object bean = schema.constructor.newInstance();
+            for (int i = 0; i < fields.length; i++) {
+                if ((bitmap[i >> 3] & (1 << (i & 7))) != 0) {
+                    fields[i].set(bean, readValue(in, fields[i].getType(), fields[i].getGenericType()));
+                } else if (!fields[i].getType().isPrimitive()) {
+                    //覆盖字段的默认值，比如User.icon = ""
+                    fields[i].set(bean, null);
+                }
+            }
+            return bean;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Schema schema(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    private Class<?> beanClass(String name) {
+        if (!name.startsWith(BEAN_PACKAGE)) {
+            throw new IllegalStateException("不支持的类型：" + name);
+        }
+        return beanClasses.computeIfAbsent(name, n -> {
+            try {
+                return Class.forName(n);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static boolean isBean(Class<?> type) {
+        return type.getName().startsWith(BEAN_PACKAGE) && !type.isEnum();
+    }
+
+    private static boolean isObjectArray(Class<?> type) {
+        return type.isArray() && !type.getComponentType().isPrimitive();
+    }
+
+    private static boolean isJson(Class<?> type) {
+        return Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type) || type.isArray();
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    //类的字段信息：按字段名排序，不含static、transient字段
+    private static final class Schema {
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final int hash;
+
+        Schema(Class<?> type) {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            fields = list.toArray(new Field[0]);
+            StringBuilder sb = new StringBuilder(type.getName());
+            for (Field field : fields) {
+                sb.append(',').append(field.getName()).append(':').append(field.getType().getName());
+            }
+            hash = sb.toString().hashCode();
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(type.getName() + "没有无参构造函数", e);
+            }
+        }
+    }
+
+    private static final class Output {
+        private byte[] buf = new byte[64];
+        private int size;
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, size + n));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            buf[size++] = (byte) (v >>> 24);
+            buf[size++] = (byte) (v >>> 16);
+            buf[size++] = (byte) (v >>> 8);
+            buf[size++] = (byte) v;
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        //每个字节7位，最高位表示后面还有字节
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            writeBytes(bytes);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+
+    private static final class Input {
+        private final byte[] buf;
+        private int pos;
+
+        Input(byte[] buf) {
+            this.buf = buf;
+        }
+
+        byte readByte() {
+            return buf[pos++];
+        }
+
+        byte[] readBytes(int n) {
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + n);
+            pos += n;
+            return bytes;
+        }
+
+        int readInt() {
+            return ((buf[pos++] & 0xFF) << 24) | ((buf[pos++] & 0xFF) << 16) | ((buf[pos++] & 0xFF) << 8) | (buf[pos++] & 0xFF);
+        }
+
+        long readLong() {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        long readVarLong() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+        }
+
+        String readString() {
+            int n = (int) readVarLong();
+            String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+    }
+}
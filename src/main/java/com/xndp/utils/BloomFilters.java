@@ -0,0 +1,159 @@
+package com.xndp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.xndp.utils.RedisConstants.*;
+
+/**
+ * 店铺、笔记、用户id的布隆过滤器，查缓存和数据库之前先判断id是否可能存在，挡住随机id的扫描
+ * local：每个节点一份本地位数组，新增数据时通过Redis发布订阅通知其它节点，
+ * 发布订阅的消息可能丢失，再定时从数据库补加上次同步之后新增的id
+ * redis：所有节点共用Redis中的bitmap，写bitmap失败时同样靠定时补加兜底，否则新数据会被一直误拦
+ * 启动时从数据库重建，重建完成之前一律当作可能存在，不会误拦正常请求
+ */
+@Slf4j
+@Component
+public class BloomFilters {
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+    public static final String USER = "user";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Value("${bloom.enabled:true}")
+    private boolean enabled;
+    @Value("${bloom.mode:local}")
+    private String mode;
+    //预计的数据量和误判率，决定位数组长度和哈希函数个数
+    @Value("${bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+    @Value("${bloom.fpp:0.01}")
+    private double fpp;
+
+    private final Map<String, IBloomFilter> filters = new HashMap<>();
+    //已经重建完成的过滤器
+    private final Set<String> ready = ConcurrentHashMap.newKeySet();
+    //缓存key前缀 -> 过滤器
+    private final Map<String, String> prefixes = new HashMap<>();
+
+    @PostConstruct
+    private void init() {
+        long bits = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int k = Math.max(1, (int) Math.round((double) bits / expectedInsertions * Math.log(2)));
+        for (String name : new String[]{SHOP, BLOG, USER}) {
+            filters.put(name, isLocal()
+                    ? new LocalBloomFilter(bits, k)
+                    : new RedisBloomFilter(stringRedisTemplate, BLOOM_KEY + name, bits, k));
+        }
+        prefixes.put(CACHE_SHOP_KEY, SHOP);
+        prefixes.put(CACHE_USER_KEY, USER);
+        prefixes.put(CACHE_BLOG_KEY, BLOG);
+        log.info("布隆过滤器：{}模式，{}位，{}个哈希函数", mode, bits, k);
+        if (isLocal()) {
+            //其它节点新增了数据，消息格式：过滤器名称:id
+            listenerContainer.addMessageListener((message, pattern) -> {
+                String body = new String(message.getBody(), StandardCharsets.UTF_8);
+                int i = body.indexOf(':');
+                if (i < 0) {
+                    log.warn("布隆过滤器消息格式错误：{}", body);
+                    return;
+                }
+                IBloomFilter filter = filters.get(body.substring(0, i));
+                if (filter == null) {
+                    return;
+                }
+                try {
+                    filter.add(Long.parseLong(body.substring(i + 1)));
+                } catch (NumberFormatException e) {
+                    log.warn("布隆过滤器消息格式错误：{}", body);
+                }
+            }, new ChannelTopic(BLOOM_ADD_CHANNEL));
+        }
+    }
+
+    /**
+     * 是否是本地模式，本地模式需要通过发布订阅通知其它节点
+     */
+    public boolean isLocal() {
+        return !"redis".equals(mode);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 判断id是否可能存在，没有启用或者还没有重建完成时返回true
+     */
+    public boolean mightContain(String name, Long id) {
+        if (!enabled || id == null || !ready.contains(name)) {
+            return true;
+        }
+        return filters.get(name).mightContain(id);
+    }
+
+    /**
+     * 按缓存key前缀判断，没有对应过滤器的前缀返回true
+     */
+    public boolean mightContainKey(String keyPrefix, Object id) {
+        String name = prefixes.get(keyPrefix);
+        if (name == null || !(id instanceof Long)) {
+            return true;
+        }
+        return mightContain(name, (Long) id);
+    }
+
+    /**
+     * 新增数据后调用
+     */
+    public void add(String name, Long id) {
+        if (!enabled || id == null) {
+            return;
+        }
+        filters.get(name).add(id);
+        if (isLocal()) {
+            stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, name + ":" + id);
+        }
+    }
+
+    /**
+     * 是否需要从数据库重建：本地模式每次启动都要；Redis模式只在没有完整重建过时才需要
+     */
+    public boolean needsRebuild(String name) {
+        if (!enabled) {
+            return false;
+        }
+        return isLocal() || !Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOOM_KEY + name + ":ready"));
+    }
+
+    public void load(String name, Collection<Long> ids) {
+        filters.get(name).addAll(ids);
+    }
+
+    /**
+     * 重建完成(或者不需要重建)，开始拦截
+     */
+    public void markReady(String name) {
+        if (!isLocal()) {
+            stringRedisTemplate.opsForValue().set(BLOOM_KEY + name + ":ready", "1");
+        }
+        ready.add(name);
+    }
+}
@@ -0,0 +1,10 @@
+package com.xndp.utils;
+
+/**
+ * 缓存未命中、查数据库的名额已满，并且没有旧值可以返回
+ */
+public class CacheBusyException extends RuntimeException {
+    public CacheBusyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,16 @@
+package com.xndp.utils;
+
+/**
+ * 缓存值的编解码器，cacheClient通过它把对象写成Redis中的字节
+ * 每个编解码器有一个唯一的id，写在值的第一个字节里，读取时按id选择编解码器，切换格式后旧数据仍然能读
+ */
+public interface CacheCodec {
+    /**
+     * 编解码器id，1~127
+     */
+    byte id();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, Class<T> type);
+}
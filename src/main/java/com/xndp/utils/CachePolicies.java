@@ -0,0 +1,29 @@
+package com.xndp.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.xndp.utils.RedisConstants.*;
+
+/**
+ * 各类数据的缓存策略
+ * 店铺类型不走cacheClient，每个节点保存一份快照，见ShopTypeServiceImpl
+ */
+public class CachePolicies {
+    //店铺：查询频繁，修改时删除缓存
+    public static final CachePolicy SHOP = CachePolicy
+            .passThrough("shop", CACHE_SHOP_KEY, CACHE_SHOP_TTL, TimeUnit.MINUTES)
+            .jitter(0.2)
+            .maxConcurrentLoads(32);
+    //笔记：点赞数会变，点赞时删除缓存
+    public static final CachePolicy BLOG = CachePolicy
+            .passThrough("blog", CACHE_BLOG_KEY, CACHE_BLOG_TTL, TimeUnit.MINUTES)
+            .jitter(0.2)
+            .maxConcurrentLoads(16);
+    //用户：只缓存UserDTO(昵称、头像)，不缓存手机号和密码
+    public static final CachePolicy USER = CachePolicy
+            .passThrough("user", CACHE_USER_KEY, CACHE_USER_TTL, TimeUnit.MINUTES)
+            .jitter(0.2)
+            .maxConcurrentLoads(16);
+
+    public static final CachePolicy[] ALL = {SHOP, BLOG, USER};
+}
@@ -0,0 +1,163 @@
+package com.xndp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一类数据的缓存策略，cacheClient按策略查询缓存
+ * 1.PASS_THROUGH：缓存空值解决缓存穿透，未命中时节点内合并加载
+ * 2.MUTEX：和PASS_THROUGH相同，但总是跨节点合并加载(Redis锁 + 加载完成通知)，解决缓存击穿
+ * 3.LOGICAL_EXPIRE：Redis中不过期，逻辑过期后返回旧值，由重建线程池异步刷新
+ * local为true时在Redis(L2)前面加一层本地缓存(L1)
+ * 过期时间按jitter随机上下浮动，避免同一批写入的key同时过期；同时查数据库的请求数有上限，满了先返回旧值
+ * 每个策略单独统计命中、加载、重建的次数
+ */
+public class CachePolicy {
+    public enum Mode {
+        PASS_THROUGH, MUTEX, LOGICAL_EXPIRE
+    }
+
+    private final String name;
+    private final String keyPrefix;
+    private final Mode mode;
+    private final long ttlSeconds;
+    //是否使用本地缓存
+    private boolean local = true;
+    //过期时间随机浮动的比例，0.1表示±10%
+    private double jitter;
+    //同时进行的异步重建数，防止一类数据占满重建线程池
+    private Semaphore rebuildPermits = new Semaphore(2);
+    private int rebuildConcurrency = 2;
+    //同时查数据库的请求数，防止缓存雪崩时数据库被打满
+    private Semaphore loadPermits = new Semaphore(16);
+    private int maxConcurrentLoads = 16;
+
+    //热点key副本命中、L1命中、L2命中、L2空值命中、查数据库、异步重建、重建被拒绝的次数
+    final LongAdder hotHits = new LongAdder();
+    final LongAdder l1Hits = new LongAdder();
+    final LongAdder l2Hits = new LongAdder();
+    final LongAdder nullHits = new LongAdder();
+    final LongAdder dbLoads = new LongAdder();
+    final LongAdder rebuilds = new LongAdder();
+    final LongAdder rebuildRejects = new LongAdder();
+    //加载名额用完时返回旧值、等待后仍然拿不到名额的次数
+    final LongAdder staleServes = new LongAdder();
+    final LongAdder loadRejects = new LongAdder();
+
+    private CachePolicy(String name, String keyPrefix, Mode mode, long time, TimeUnit unit) {
+        this.name = name;
+        this.keyPrefix = keyPrefix;
+        this.mode = mode;
+        this.ttlSeconds = unit.toSeconds(time);
+    }
+
+    public static CachePolicy passThrough(String name, String keyPrefix, long time, TimeUnit unit) {
+        return new CachePolicy(name, keyPrefix, Mode.PASS_THROUGH, time, unit);
+    }
+
+    public static CachePolicy mutex(String name, String keyPrefix, long time, TimeUnit unit) {
+        return new CachePolicy(name, keyPrefix, Mode.MUTEX, time, unit);
+    }
+
+    public static CachePolicy logicalExpire(String name, String keyPrefix, long time, TimeUnit unit) {
+        return new CachePolicy(name, keyPrefix, Mode.LOGICAL_EXPIRE, time, unit);
+    }
+
+    public CachePolicy local(boolean local) {
+        this.local = local;
+        return this;
+    }
+
+    public CachePolicy jitter(double jitter) {
+        this.jitter = jitter;
+        return this;
+    }
+
+    public CachePolicy rebuildConcurrency(int rebuildConcurrency) {
+        this.rebuildConcurrency = rebuildConcurrency;
+        this.rebuildPermits = new Semaphore(rebuildConcurrency);
+        return this;
+    }
+
+    public CachePolicy maxConcurrentLoads(int maxConcurrentLoads) {
+        this.maxConcurrentLoads = maxConcurrentLoads;
+        this.loadPermits = new Semaphore(maxConcurrentLoads);
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean isLocal() {
+        return local;
+    }
+
+    /**
+     * 本次写入使用的过期时间(秒)：ttl * [1 - jitter, 1 + jitter)，至少1秒
+     */
+    public long nextTtlSeconds() {
+        return jitter(ttlSeconds, jitter);
+    }
+
+    static long jitter(long seconds, double jitter) {
+        if (jitter <= 0) {
+            return seconds;
+        }
+        double factor = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(1, Math.round(seconds * factor));
+    }
+
+    boolean tryAcquireRebuild() {
+        return rebuildPermits.tryAcquire();
+    }
+
+    void releaseRebuild() {
+        rebuildPermits.release();
+    }
+
+    boolean tryAcquireLoad() {
+        return loadPermits.tryAcquire();
+    }
+
+    boolean tryAcquireLoad(long waitMillis) throws InterruptedException {
+        return loadPermits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void releaseLoad() {
+        loadPermits.release();
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mode", mode);
+        stats.put("local", local);
+        stats.put("ttlSeconds", ttlSeconds);
+        stats.put("jitter", jitter);
+        stats.put("rebuildConcurrency", rebuildConcurrency);
+        stats.put("maxConcurrentLoads", maxConcurrentLoads);
+        stats.put("loading", maxConcurrentLoads - loadPermits.availablePermits());
+        stats.put("hotHits", hotHits.sum());
+        stats.put("l1Hits", l1Hits.sum());
+        stats.put("l2Hits", l2Hits.sum());
+        stats.put("nullHits", nullHits.sum());
+        stats.put("dbLoads", dbLoads.sum());
+        stats.put("rebuilds", rebuilds.sum());
+        stats.put("rebuildRejects", rebuildRejects.sum());
+        stats.put("staleServes", staleServes.sum());
+        stats.put("loadRejects", loadRejects.sum());
+        return stats;
+    }
+}
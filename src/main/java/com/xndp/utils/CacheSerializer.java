@@ -0,0 +1,114 @@
+package com.xndp.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 缓存值的字节格式：第一个字节是编解码器id，最高位表示压缩过，压缩时后面4个字节是原始长度
+ * 没有压缩的JSON不加这个字节，和之前写入的JSON字符串兼容；第一个字节不是已知id的值都按JSON读
+ * 空数组表示空值(数据库中不存在)
+ */
+public class CacheSerializer {
+    private static final int COMPRESSED = 0x80;
+
+    private final CacheCodec codec;
+    private final CacheCodec json = new JsonCacheCodec();
+    private final CacheCodec binary;
+    //超过这个字节数才压缩，0表示不压缩
+    private final int compressThreshold;
+
+    public CacheSerializer(CacheCodec codec, int compressThreshold) {
+        this.codec = codec;
+        this.binary = codec instanceof BinaryCacheCodec ? codec : new BinaryCacheCodec();
+        this.compressThreshold = compressThreshold;
+    }
+
+    public CacheCodec codec() {
+        return codec;
+    }
+
+    public byte[] serialize(Object value) {
+        byte[] payload = codec.encode(value);
+        if (compressThreshold > 0 && payload.length > compressThreshold) {
+            byte[] compressed = compress(payload);
+            //压缩后没有变小就不压缩
+            if (compressed.length + 5 < payload.length) {
+                byte[] bytes = new byte[compressed.length + 5];
+                bytes[0] = (byte) (codec.id() | COMPRESSED);
+                bytes[1] = (byte) (payload.length >>> 24);
+                bytes[2] = (byte) (payload.length >>> 16);
+                bytes[3] = (byte) (payload.length >>> 8);
+                bytes[4] = (byte) payload.length;
+                System.arraycopy(compressed, 0, bytes, 5, compressed.length);
+                return bytes;
+            }
+        }
+        if (codec.id() == JsonCacheCodec.ID) {
+            return payload;
+        }
+        byte[] bytes = new byte[payload.length + 1];
+        bytes[0] = codec.id();
+        System.arraycopy(payload, 0, bytes, 1, payload.length);
+        return bytes;
+    }
+
+    public <T> T deserialize(byte[] bytes, Class<T> type) {
+        int id = bytes[0] & 0x7F;
+        CacheCodec target = id == JsonCacheCodec.ID ? json : id == BinaryCacheCodec.ID ? binary : null;
+        if (target == null) {
+            //没有头的JSON
+            return json.decode(bytes, type);
+        }
+        byte[] payload;
+        if ((bytes[0] & COMPRESSED) != 0) {
+            int length = ((bytes[1] & 0xFF) << 24) | ((bytes[2] & 0xFF) << 16) | ((bytes[3] & 0xFF) << 8) | (bytes[4] & 0xFF);
+            payload = decompress(bytes, 5, length);
+        } else {
+            payload = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return target.decode(payload, type);
+    }
+
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            byte[] buf = new byte[1024];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] data, int offset, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, data.length - offset);
+            byte[] result = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int r = inflater.inflate(result, n, length - n);
+                if (r == 0 && inflater.needsInput()) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != length) {
+                throw new IllegalStateException("压缩数据不完整");
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.xndp.utils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 热点key检测：按采样率记录key的访问，用Count-Min Sketch估算滑动窗口内的访问次数
+ * 窗口分成若干段，每段一个Sketch，rotate()清空最旧的一段；估算值超过阈值的key成为热点key，
+ * 降到阈值一半以下时移出，避免在阈值附近反复进出
+ */
+public class HotKeyDetector {
+    //Sketch的行数(哈希函数个数)和列数
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 14;
+    //窗口分成的段数
+    public static final int SLOTS = 5;
+
+    //每段一个Sketch，DEPTH * WIDTH 个计数
+    private final AtomicIntegerArray[] sketches = new AtomicIntegerArray[SLOTS];
+    private volatile int current;
+    private final double sampleRate;
+    //窗口内的访问次数(按采样率换算后)达到threshold就是热点key
+    private final long threshold;
+    private final int maxKeys;
+    //热点key -> 成为热点的时间
+    private final Map<String, LocalDateTime> hotKeys = new ConcurrentHashMap<>();
+
+    public HotKeyDetector(double sampleRate, long threshold, int maxKeys) {
+        for (int i = 0; i < SLOTS; i++) {
+            sketches[i] = new AtomicIntegerArray(DEPTH * WIDTH);
+        }
+        this.sampleRate = sampleRate;
+        this.threshold = threshold;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * 记录一次访问，返回key当前是否是热点key
+     */
+    public boolean record(String key) {
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return hotKeys.containsKey(key);
+        }
+        AtomicIntegerArray sketch = sketches[current];
+        int h1 = key.hashCode();
+        int h2 = spread(h1);
+        for (int i = 0; i < DEPTH; i++) {
+            sketch.incrementAndGet(i * WIDTH + index(h1, h2, i));
+        }
+        if (hotKeys.containsKey(key)) {
+            return true;
+        }
+        if (estimate(key) >= threshold && hotKeys.size() < maxKeys) {
+            hotKeys.putIfAbsent(key, LocalDateTime.now());
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 滑动窗口前进一段：清空最旧的一段，移出已经不热的key
+     *
+     * @return 移出的key
+     */
+    public List<String> rotate() {
+        int next = (current + 1) % SLOTS;
+        AtomicIntegerArray oldest = sketches[next];
+        for (int i = 0; i < oldest.length(); i++) {
+            oldest.set(i, 0);
+        }
+        current = next;
+        List<String> cooled = new ArrayList<>();
+        hotKeys.keySet().removeIf(key -> {
+            if (estimate(key) * 2 < threshold) {
+                cooled.add(key);
+                return true;
+            }
+            return false;
+        });
+        return cooled;
+    }
+
+    /**
+     * 窗口内的访问次数估算值(按采样率换算)，Count-Min Sketch只会多估不会少估
+     */
+    public long estimate(String key) {
+        int h1 = key.hashCode();
+        int h2 = spread(h1);
+        long sum = 0;
+        for (AtomicIntegerArray sketch : sketches) {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, sketch.get(i * WIDTH + index(h1, h2, i)));
+            }
+            sum += min;
+        }
+        return (long) (sum / sampleRate);
+    }
+
+    /**
+     * 当前的热点key，按访问次数从高到低
+     */
+    public List<Map<String, Object>> hotKeys() {
+        List<Map<String, Object>> list = new ArrayList<>();
+        hotKeys.forEach((key, since) -> {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", key);
+            item.put("estimate", estimate(key));
+            item.put("since", since);
+            list.add(item);
+        });
+        list.sort(Comparator.comparingLong((Map<String, Object> item) -> (Long) item.get("estimate")).reversed());
+        return list;
+    }
+
+    public int size() {
+        return hotKeys.size();
+    }
+
+    //第i个哈希函数：h1 + i * h2(双重哈希)
+    private static int index(int h1, int h2, int i) {
+        return ((h1 + i * h2) & Integer.MAX_VALUE) % WIDTH;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+}
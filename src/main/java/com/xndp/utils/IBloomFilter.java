@@ -0,0 +1,46 @@
+package com.xndp.utils;
+
+import java.util.Collection;
+
+public interface IBloomFilter {
+    /**
+     * 加入一个id
+     */
+    public void add(long id);
+
+    /**
+     * 批量加入id，用于重建
+     */
+    public void addAll(Collection<Long> ids);
+
+    /**
+     * 判断id是否可能存在
+     *
+     * @return false代表一定不存在; true代表可能存在
+     */
+    public boolean mightContain(long id);
+
+    /**
+     * 按双重哈希计算id对应的k个位置：h1 + i * h2
+     *
+     * @param id   id
+     * @param k    哈希函数个数
+     * @param bits 位数组长度
+     */
+    static long[] positions(long id, int k, long bits) {
+        long h1 = mix(id);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        long[] positions = new long[k];
+        for (int i = 0; i < k; i++) {
+            positions[i] = Math.floorMod(h1 + i * h2, bits);
+        }
+        return positions;
+    }
+
+    //splitmix64的混淆函数，连续的id也能分散开
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
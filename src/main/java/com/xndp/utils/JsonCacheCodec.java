@@ -0,0 +1,28 @@
+package com.xndp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON编解码，和之前直接用JSONUtil写入的格式相同
+ */
+public class JsonCacheCodec implements CacheCodec {
+    public static final byte ID = 1;
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        //数组(比如ShopType[])也能解析
+        return JSONUtil.parse(new String(bytes, StandardCharsets.UTF_8)).toBean(type);
+    }
+}
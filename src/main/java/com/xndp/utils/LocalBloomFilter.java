@@ -0,0 +1,49 @@
+package com.xndp.utils;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 本地位数组实现的布隆过滤器，判断时不访问Redis，每个节点各自一份
+ */
+public class LocalBloomFilter implements IBloomFilter {
+    private final AtomicLongArray words;
+    private final long bits;
+    private final int k;
+
+    public LocalBloomFilter(long bits, int k) {
+        this.words = new AtomicLongArray((int) ((bits + 63) >>> 6));
+        this.bits = bits;
+        this.k = k;
+    }
+
+    @Override
+    public void add(long id) {
+        for (long position : IBloomFilter.positions(id, k, bits)) {
+            int i = (int) (position >>> 6);
+            long mask = 1L << position;
+            long word;
+            //已经是1就不用再写
+            while (((word = words.get(i)) & mask) == 0) {
+                if (words.compareAndSet(i, word, word | mask)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addAll(Collection<Long> ids) {
+        ids.forEach(this::add);
+    }
+
+    @Override
+    public boolean mightContain(long id) {
+        for (long position : IBloomFilter.positions(id, k, bits)) {
+            if ((words.get((int) (position >>> 6)) & (1L << position)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
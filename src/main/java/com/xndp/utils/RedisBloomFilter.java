@@ -0,0 +1,79 @@
+package com.xndp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Redis bitmap实现的布隆过滤器，所有节点共用一份，每次判断、加入都是一次脚本调用
+ */
+public class RedisBloomFilter implements IBloomFilter {
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+    private static final DefaultRedisScript<Long> CHECK_SCRIPT;
+
+    static {
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("bloom_add.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+        CHECK_SCRIPT = new DefaultRedisScript<>();
+        CHECK_SCRIPT.setLocation(new ClassPathResource("bloom_check.lua"));
+        CHECK_SCRIPT.setResultType(Long.class);
+    }
+
+    //每次脚本调用最多加入的id数量
+    private static final int BATCH_SIZE = 1000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String key;
+    private final long bits;
+    private final int k;
+
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String key, long bits, int k) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = key;
+        this.bits = bits;
+        this.k = k;
+    }
+
+    @Override
+    public void add(long id) {
+        addAll(Collections.singletonList(id));
+    }
+
+    @Override
+    public void addAll(Collection<Long> ids) {
+        List<String> positions = new ArrayList<>(Math.min(ids.size(), BATCH_SIZE) * k);
+        int count = 0;
+        for (Long id : ids) {
+            for (long position : IBloomFilter.positions(id, k, bits)) {
+                positions.add(String.valueOf(position));
+            }
+            if (++count % BATCH_SIZE == 0) {
+                execute(ADD_SCRIPT, positions);
+                positions.clear();
+            }
+        }
+        if (!positions.isEmpty()) {
+            execute(ADD_SCRIPT, positions);
+        }
+    }
+
+    @Override
+    public boolean mightContain(long id) {
+        List<String> positions = new ArrayList<>(k);
+        for (long position : IBloomFilter.positions(id, k, bits)) {
+            positions.add(String.valueOf(position));
+        }
+        Long r = execute(CHECK_SCRIPT, positions);
+        return r == null || r == 1;
+    }
+
+    private Long execute(DefaultRedisScript<Long> script, List<String> positions) {
+        return stringRedisTemplate.execute(script, Collections.singletonList(key), positions.toArray());
+    }
+}
@@ -8,4 +8,5 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;//过期时间
     private Object data;//万能的存储，比如存储shop
+    private Long delta;//上一次重建缓存花费的时间(毫秒)，用来决定提前多久刷新
 }
@@ -1,13 +1,28 @@
 package com.xndp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 //全局唯一id生成器
+@Slf4j
 @Component
 public class RedisIdWorker {
     /**
@@ -19,28 +34,196 @@ public class RedisIdWorker {
      * 序列号的位数
      */
     private static final int COUNT_BITS = 32;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+    private static final long SECONDS_PER_DAY = 86400L;
 
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 生成模式
+     * redis：每个id一次INCR
+     * segment：号段模式，每次用INCRBY从Redis租一段序列号，在本地分配
+     * 秒杀订单id由SeckillStock拿到购买资格后调用nextId("order")生成，切换模式会影响秒杀下单的Redis往返次数
+     * snowflake：雪花算法，启动时抢占机器id，之后生成id不访问Redis，id的位布局和前两种不同
+     */
+    @Value("${id-worker.mode:redis}")
+    private String mode;
+    //每个号段的长度
+    @Value("${id-worker.segment-size:1000}")
+    private int segmentSize;
+
+    //业务前缀 -> 号段
+    private final Map<String, SegmentBuffer> segments = new ConcurrentHashMap<>();
+    //异步预取下一个号段，守护线程，销毁时关闭
+    private final ExecutorService segmentPrefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private SnowflakeIdGenerator snowflake;
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PostConstruct
+    private void init() {
+        if ("snowflake".equals(mode)) {
+            //启动时抢占一次机器id
+            snowflake = new SnowflakeIdGenerator(stringRedisTemplate, BEGIN_TIMESTAMP);
+            snowflake.register();
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        segmentPrefetchExecutor.shutdownNow();
+        if (snowflake != null) {
+            snowflake.release();
+        }
+    }
+
     public long nextId(String keyPrefix) {
+        if ("snowflake".equals(mode)) {
+            return snowflake.nextId();
+        }
+        if ("segment".equals(mode)) {
+            return nextSegmentId(keyPrefix);
+        }
         //1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
-        //当前时间的秒，减去初始时间
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timeStamp = nowSecond - BEGIN_TIMESTAMP;
+        long timeStamp = timestamp(now);
         //2.生成序列号  为什么要拼接当前日期？
         // 理由1：同一个业务用相同的key，可以会爆
         // 理由2：精确到天，可以统计每一天的订单量
-        //2.1获取当前时期精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        //2.2自增长
-        long count = stringRedisTemplate.opsForValue().increment("inc:" + keyPrefix + ":" + date);
+        //2.1自增长
+        long count = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, now));
         //3.拼接并返回
+        return compose(timeStamp, count);
+    }
+
+    /**
+     * id的时间戳部分：当前时间的秒，减去初始时间
+     */
+    public long timestamp(LocalDateTime now) {
+        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        return nowSecond - BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 序列号计数器的key，按天区分，inc:业务前缀:yyyy:MM:dd
+     * redis模式每个id INCR一次，号段模式每次INCRBY一段，两种模式用的是同一个计数器
+     */
+    public String counterKey(String keyPrefix, LocalDateTime now) {
+        return "inc:" + keyPrefix + ":" + now.format(DATE_FORMATTER);
+    }
+
+    /**
+     * 拼接时间戳和序列号
+     */
+    public static long compose(long timeStamp, long count) {
         return timeStamp << COUNT_BITS | count;
     }
 
+    //号段模式，时间戳和日期都由当前秒数直接计算，不再每次创建LocalDateTime和格式化日期
+    private long nextSegmentId(String keyPrefix) {
+        //和LocalDateTime.now().toEpochSecond(ZoneOffset.UTC)一样，都是本地时间的秒数
+        long millis = System.currentTimeMillis();
+        long localSecond = millis / 1000 + ZONE.getRules().getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds();
+        long day = Math.floorDiv(localSecond, SECONDS_PER_DAY);
+        SegmentBuffer buffer = segments.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        return compose(localSecond - BEGIN_TIMESTAMP, buffer.next(day));
+    }
+
+    /**
+     * 一段序列号 [start, end]，属于某一天的计数器
+     */
+    private static class Segment {
+        private final long day;
+        private final long end;
+        //剩余20%时开始预取下一段
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        Segment(long day, long start, long end) {
+            this.day = day;
+            this.end = end;
+            this.prefetchAt = end - (end - start + 1) / 5;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 一个业务前缀的号段，当前号段用CAS无锁分配，只有换段时才加锁
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private final AtomicReference<Segment> current = new AtomicReference<>();
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(long day) {
+            while (true) {
+                Segment segment = current.get();
+                //跨天后旧号段作废，序列号必须来自当天的计数器，否则和当天其它节点的id重复
+                if (segment == null || segment.day != day) {
+                    switchSegment(segment, day);
+                    continue;
+                }
+                long value = segment.cursor.getAndIncrement();
+                if (value <= segment.end) {
+                    if (value == segment.prefetchAt) {
+                        prefetch(day);
+                    }
+                    return value;
+                }
+                //当前号段用完了，换到下一段
+                switchSegment(segment, day);
+            }
+        }
+
+        private synchronized void switchSegment(Segment used, long day) {
+            if (current.get() != used) {
+                //其它线程已经换过了
+                return;
+            }
+            Segment segment = next;
+            next = null;
+            //预取还没完成时已经同步租过一段，预取的那段比当前段小，直接丢弃，保证同一个线程拿到的id递增
+            if (segment == null || segment.day != day || (used != null && segment.end <= used.end)) {
+                segment = lease(day);
+            }
+            current.set(segment);
+        }
+
+        private void prefetch(long day) {
+            if (next != null || !loading.compareAndSet(false, true)) {
+                return;
+            }
+            segmentPrefetchExecutor.execute(() -> {
+                try {
+                    next = lease(day);
+                } catch (Exception e) {
+                    //预取失败，号段用完时会同步再租一次
+                    log.error("预取号段失败，prefix = {}", keyPrefix, e);
+                } finally {
+                    loading.set(false);
+                }
+            });
+        }
+
+        //INCRBY inc:业务前缀:yyyy:MM:dd segmentSize，返回值是这一段的结尾
+        private Segment lease(long day) {
+            String key = "inc:" + keyPrefix + ":" + LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+            long end = stringRedisTemplate.opsForValue().increment(key, segmentSize);
+            return new Segment(day, end - segmentSize + 1, end);
+        }
+    }
+
 }
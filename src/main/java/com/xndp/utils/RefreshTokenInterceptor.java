@@ -43,7 +43,7 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
             return true;
         }
         //4.将查询到的hash数据转回userDto对象
-        UserDTO userDTO = BeanUtil.fillBeanWitxnap(userMap, new UserDTO(), false);
+        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
         //5.存在，要保存信息到ThreadLocal，是保存在当前线程中的
         UserHolder.saveUser(userDTO);
         //6.刷新token的过期时间，因为经过了拦截器，肯定说明用户活跃，就要刷新token的保存时间
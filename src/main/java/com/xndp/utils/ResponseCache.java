@@ -0,0 +1,160 @@
+package com.xndp.utils;
+
+import cn.hutool.crypto.digest.DigestUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.xndp.dto.Result;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static com.xndp.utils.RedisConstants.RESPONSE_INVALIDATE_CHANNEL;
+
+/**
+ * 响应缓存：按接口和参数缓存序列化好的JSON响应体，命中时直接写字节，不用复制对象、不用再序列化
+ * 响应带ETag，请求的If-None-Match相同时返回304
+ * 只缓存成功的响应，数据修改时删除，通过Redis发布订阅通知所有节点；过期时间很短，兜底没有删除的变化(库存等)
+ */
+@Component
+public class ResponseCache {
+    //缓存key的前缀：接口 + 参数
+    public static final String SHOP = "shop:";
+    public static final String HOT_BLOG = "blog:hot:";
+    public static final String SHOP_VOUCHERS = "voucher:list:";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+    //和Spring MVC返回JSON时使用同一个ObjectMapper，保证格式一致
+    @Resource
+    private ObjectMapper objectMapper;
+
+    @Value("${cache.response.maximum-size:10000}")
+    private long maximumSize;
+    @Value("${cache.response.ttl-seconds:10}")
+    private long ttlSeconds;
+    private Cache<String, Entry> cache;
+
+    //命中、未命中(序列化)、返回304的次数
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+
+    /**
+     * 序列化好的响应，创建后不再修改
+     */
+    private static class Entry {
+        private final byte[] body;
+        private final String etag;
+
+        private Entry(byte[] body, String etag) {
+            this.body = body;
+            this.etag = etag;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+        //其它节点修改了数据，消息内容是key，以*结尾时删除这个前缀的所有key
+        listenerContainer.addMessageListener((message, pattern) ->
+                        invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RESPONSE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 查询响应缓存，未命中时执行loader并缓存成功的结果
+     *
+     * @param key         接口 + 参数，比如 SHOP + id
+     * @param ifNoneMatch 请求头If-None-Match，可以为null
+     * @param loader      生成响应的函数
+     */
+    public ResponseEntity<byte[]> get(String key, String ifNoneMatch, Supplier<Result> loader) {
+        //1.查本地缓存
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null) {
+            hits.increment();
+        } else {
+            //2.未命中，生成响应并序列化
+            misses.increment();
+            Result result = loader.get();
+            entry = serialize(result);
+            //3.只缓存成功的响应，失败(比如店铺不存在)的每次重新查询
+            if (Boolean.TRUE.equals(result.getSuccess())) {
+                cache.put(key, entry);
+            }
+        }
+        //4.客户端缓存的版本相同，返回304，不写响应体
+        if (entry.etag.equals(ifNoneMatch)) {
+            notModified.increment();
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(entry.etag).build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(entry.etag)
+                .body(entry.body);
+    }
+
+    /**
+     * 数据修改后删除响应缓存，同时删除所有节点上的
+     */
+    public void evict(String key) {
+        invalidateLocal(key);
+        stringRedisTemplate.convertAndSend(RESPONSE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 删除前缀相同的所有响应缓存，比如所有页的热门笔记
+     */
+    public void evictPrefix(String prefix) {
+        evict(prefix + "*");
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", cache.estimatedSize());
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("notModified", notModified.sum());
+        return stats;
+    }
+
+    private void invalidateLocal(String key) {
+        if (key.endsWith("*")) {
+            String prefix = key.substring(0, key.length() - 1);
+            cache.asMap().keySet().removeIf(k -> k.startsWith(prefix));
+        } else {
+            cache.invalidate(key);
+        }
+    }
+
+    //序列化，ETag是响应体的MD5
+    private Entry serialize(Result result) {
+        try {
+            byte[] body = objectMapper.writeValueAsBytes(result);
+            return new Entry(body, "\"" + DigestUtil.md5Hex(body) + "\"");
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("响应序列化失败", e);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.xndp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.xndp.utils.RedisConstants.SECKILL_LIMITER_CONF_KEY;
+import static com.xndp.utils.RedisConstants.SECKILL_LIMITER_KEY;
+
+/**
+ * 秒杀准入限流，放在秒杀脚本前面，把明显超出库存的请求提前拒绝掉
+ * 1.本地令牌桶：容量和每个窗口补充的令牌数 = 剩余库存 * multiplier，不访问Redis
+ * 2.集群滑动窗口：拿到本地令牌的请求再经过所有节点共用的滑动窗口(Lua脚本)
+ * 剩余库存和按优惠券的配置(hash seckill:limiter:conf:{id}，字段enabled、multiplier、limit)每秒刷新一次
+ */
+@Slf4j
+@Component
+public class SeckillLimiter {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStock seckillStock;
+
+    @Value("${seckill.limiter.enabled:true}")
+    private boolean enabled;
+    @Value("${seckill.limiter.multiplier:2}")
+    private double multiplier;
+    @Value("${seckill.limiter.window-millis:1000}")
+    private long windowMillis;
+
+    private static final long REFRESH_MILLIS = 1000L;
+    private static final String NODE_NAME = ManagementFactory.getRuntimeMXBean().getName();
+
+    private static final DefaultRedisScript<Long> LIMITER_SCRIPT;
+
+    static {
+        LIMITER_SCRIPT = new DefaultRedisScript<>();
+        LIMITER_SCRIPT.setLocation(new ClassPathResource("seckill_limiter.lua"));
+        LIMITER_SCRIPT.setResultType(Long.class);
+    }
+
+    //优惠券id -> 限流状态
+    private final Map<Long, VoucherLimiter> limiters = new ConcurrentHashMap<>();
+    //滑动窗口中每个请求的唯一标识
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * 尝试获得准入资格
+     *
+     * @return true：放行，去执行秒杀脚本；false：被限流
+     */
+    public boolean tryAcquire(Long voucherId) {
+        if (!enabled) {
+            return true;
+        }
+        VoucherLimiter limiter = limiters.computeIfAbsent(voucherId, VoucherLimiter::new);
+        limiter.refreshIfNeeded();
+        if (!limiter.enabled) {
+            limiter.accepted.increment();
+            return true;
+        }
+        //1.本地令牌桶
+        if (!limiter.tryTake()) {
+            limiter.rejectedLocal.increment();
+            return false;
+        }
+        //2.集群滑动窗口
+        long now = System.currentTimeMillis();
+        Long r = stringRedisTemplate.execute(
+                LIMITER_SCRIPT,
+                Collections.singletonList(SECKILL_LIMITER_KEY + voucherId),
+                String.valueOf(now), String.valueOf(windowMillis), String.valueOf(limiter.limit),
+                NODE_NAME + "-" + sequence.incrementAndGet());
+        if (r == null || r == 0) {
+            limiter.rejectedCluster.increment();
+            return false;
+        }
+        limiter.accepted.increment();
+        return true;
+    }
+
+    /**
+     * 每张优惠券的放行、拒绝次数和当前的窗口大小
+     */
+    public Map<Long, Map<String, Object>> stats() {
+        Map<Long, Map<String, Object>> stats = new LinkedHashMap<>();
+        limiters.forEach((voucherId, limiter) -> {
+            Map<String, Object> one = new LinkedHashMap<>();
+            one.put("enabled", limiter.enabled);
+            one.put("limit", limiter.limit);
+            one.put("accepted", limiter.accepted.sum());
+            one.put("rejectedLocal", limiter.rejectedLocal.sum());
+            one.put("rejectedCluster", limiter.rejectedCluster.sum());
+            stats.put(voucherId, one);
+        });
+        return stats;
+    }
+
+    private class VoucherLimiter {
+        private final Long voucherId;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile long lastRefresh;
+        private volatile boolean enabled = true;
+        //每个窗口放行的请求数，也是令牌桶的容量
+        private volatile long limit = Long.MAX_VALUE;
+
+        //令牌桶状态，由synchronized保护
+        private double tokens = -1;
+        private long lastRefill;
+
+        private final LongAdder accepted = new LongAdder();
+        private final LongAdder rejectedLocal = new LongAdder();
+        private final LongAdder rejectedCluster = new LongAdder();
+
+        VoucherLimiter(Long voucherId) {
+            this.voucherId = voucherId;
+        }
+
+        //只让一个线程去Redis刷新，其它线程继续用旧的配置
+        void refreshIfNeeded() {
+            long now = System.currentTimeMillis();
+            if (now - lastRefresh < REFRESH_MILLIS || !refreshing.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                Map<Object, Object> conf = stringRedisTemplate.opsForHash().entries(SECKILL_LIMITER_CONF_KEY + voucherId);
+                enabled = !"0".equals(conf.get("enabled"));
+                Object fixed = conf.get("limit");
+                if (fixed != null) {
+                    limit = Math.max(Long.parseLong(fixed.toString()), 1);
+                } else {
+                    Object m = conf.get("multiplier");
+                    double k = m == null ? multiplier : Double.parseDouble(m.toString());
+                    //至少放行一个请求，让秒杀脚本确认售罄
+                    limit = Math.max((long) Math.ceil(seckillStock.remaining(voucherId) * k), 1);
+                }
+            } catch (Exception e) {
+                log.debug("刷新优惠券{}的限流配置失败", voucherId, e);
+            } finally {
+                lastRefresh = now;
+                refreshing.set(false);
+            }
+        }
+
+        synchronized boolean tryTake() {
+            long now = System.currentTimeMillis();
+            long capacity = limit;
+            if (tokens < 0) {
+                tokens = capacity;
+            } else {
+                //按经过的时间补充令牌，每个窗口补满一桶
+                tokens = Math.min(capacity, tokens + (double) (now - lastRefill) * capacity / windowMillis);
+            }
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.xndp.utils;
+
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.xndp.utils.RedisConstants.SECKILL_ORDER_STATUS_KEY;
+import static com.xndp.utils.RedisConstants.SECKILL_ORDER_STATUS_TTL;
+
+/**
+ * 秒杀订单状态
+ * 按订单id里的时间戳每小时一个hash：seckill:order:status:{小时}，field是订单id，value是一个字符(Q/P/F/D)
+ * 拿到购买资格后写入Q，消费者落库后写入P，转入死信队列或者数据库库存不足时写入F，
+ * 数据库里已经有这个用户的另一笔订单、这个订单id没有写入时写入D，每次写入都刷新过期时间，整个桶到期后自动删除
+ */
+@Component
+public class SeckillOrderStatus {
+    public static final String QUEUED = "Q";
+    public static final String PERSISTED = "P";
+    public static final String FAILED = "F";
+    public static final String DUPLICATE = "D";
+
+    private static final long SECONDS_PER_BUCKET = 3600L;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 订单id的时间戳部分(秒)所在的状态key
+     */
+    public static String keyOfTimestamp(long timeStamp) {
+        return SECKILL_ORDER_STATUS_KEY + timeStamp / SECONDS_PER_BUCKET;
+    }
+
+    public static String keyOf(long orderId) {
+        return keyOfTimestamp(orderId >>> 32);
+    }
+
+    /**
+     * 查询订单状态
+     *
+     * @return Q/P/F/D，没有记录(订单不存在或者状态已过期)时返回null
+     */
+    public String get(Long orderId) {
+        Object status = stringRedisTemplate.opsForHash().get(keyOf(orderId), orderId.toString());
+        return status == null ? null : status.toString();
+    }
+
+    public void markPersisted(Collection<Long> orderIds) {
+        mark(orderIds, PERSISTED);
+    }
+
+    public void markFailed(Collection<Long> orderIds) {
+        mark(orderIds, FAILED);
+    }
+
+    public void markDuplicate(Collection<Long> orderIds) {
+        mark(orderIds, DUPLICATE);
+    }
+
+    /**
+     * 同一批订单的状态一次管道写入
+     *
+     * @param status Q/P/F/D
+     */
+    public void mark(Collection<Long> orderIds, String status) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            Set<String> keys = new HashSet<>();
+            for (Long orderId : orderIds) {
+                String key = keyOf(orderId);
+                conn.hSet(key, orderId.toString(), status);
+                keys.add(key);
+            }
+            for (String key : keys) {
+                conn.expire(key, SECKILL_ORDER_STATUS_TTL);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 状态码转成返回给前端的名称
+     */
+    public static String describe(String status) {
+        switch (status) {
+            case QUEUED:
+                return "QUEUED";
+            case PERSISTED:
+                return "PERSISTED";
+            case FAILED:
+                return "FAILED";
+            case DUPLICATE:
+                return "DUPLICATE";
+            default:
+                return status;
+        }
+    }
+}
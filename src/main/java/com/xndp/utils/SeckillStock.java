@@ -0,0 +1,566 @@
+package com.xndp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static com.xndp.utils.RedisConstants.*;
+import static com.xndp.utils.SeckillOrderStatus.QUEUED;
+
+/**
+ * 秒杀库存
+ * 单key模式：库存放在seckill:stock:{id}，下单用户放在seckill:order:{id}，key带hash tag，在Redis Cluster中落在同一个slot
+ * 分片模式：库存和下单用户拆到M个带hash tag的子key上，seckill:stock:{id:i}、seckill:order:{id:i}，
+ * 用户固定落在 userId % M 号分片，一人一单只在这个分片里判断；分片库存不足时，从相邻分片借库存
+ * 两种模式的脚本都只操作同一个hash tag的key(Redis Cluster不允许跨slot)，拿到购买资格后再生成订单id，订单状态和消息用一个pipeline发送，
+ * 发送消息失败时把库存和下单用户还回分片；节点在两步之间宕机留下的用户由对账任务还回，见doAcquire
+ * 售罄后在本地打上标记并广播给其它节点，之后的请求不再访问Redis
+ * 秒杀开始、结束时间(秒)放在hash seckill:window:{id}(分片模式每个分片一份)，由脚本和库存一起判断，不查数据库
+ * 强制预热期间在Redis中写入seckill:warming并广播，所有节点暂停秒杀，本地标记最多每秒回查一次Redis，防止漏掉广播
+ */
+@Slf4j
+@Component
+public class SeckillStock {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+    @Resource
+    private RedisIdWorker redisIdWorker;
+    @Resource
+    private StreamTrimmer streamTrimmer;
+
+    //新增秒杀券时的分片数，1表示单key模式
+    @Value("${seckill.stock.shards:1}")
+    private int shards;
+
+    //优惠券id -> 分片数
+    private final Map<Long, Integer> shardCache = new ConcurrentHashMap<>();
+    //优惠券id -> 售罄时间，标记超过有效期后放一个请求去Redis确认，防止漏掉补库存的广播
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+    private static final long SOLD_OUT_TTL_MILLIS = 60_000L;
+    //库存预热完成之前关闭秒杀入口
+    private final AtomicBoolean ready = new AtomicBoolean(false);
+    //集群中是否有节点正在强制预热，以及上次从Redis确认的时间
+    private volatile boolean warming;
+    private volatile long warmingCheckedAt;
+    public static final long WARMING_CHECK_MILLIS = 1000L;
+    //重建下单用户集合时，每次管道写入的用户数
+    private static final int RESTORE_BATCH_SIZE = 1000;
+
+    private static final String QUEUE_NAME = "stream.orders";
+    private static final String GROUP_NAME = "g1";
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> BORROW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+        BORROW_SCRIPT = new DefaultRedisScript<>();
+        BORROW_SCRIPT.setLocation(new ClassPathResource("seckill_borrow.lua"));
+        BORROW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("seckill_release.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @PostConstruct
+    private void subscribe() {
+        //消息格式：1:优惠券id 表示售罄，0:优惠券id 表示重新有库存
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int i = body.indexOf(':');
+            if (i < 0) {
+                return;
+            }
+            Long voucherId = Long.valueOf(body.substring(i + 1));
+            if (body.charAt(0) == '1') {
+                soldOut.put(voucherId, System.currentTimeMillis());
+            } else {
+                soldOut.remove(voucherId);
+                shardCache.remove(voucherId);
+            }
+        }, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        //消息内容：1 开始预热，0 预热结束
+        listenerContainer.addMessageListener((message, pattern) -> {
+            warming = message.getBody().length > 0 && message.getBody()[0] == '1';
+            warmingCheckedAt = System.currentTimeMillis();
+        }, new ChannelTopic(SECKILL_WARMING_CHANNEL));
+    }
+
+    /**
+     * 写入秒杀券库存和秒杀时间，分片模式下把库存尽量平均地拆到各个分片
+     *
+     * @param voucherId 优惠券id
+     * @param stock     库存
+     * @param beginTime 秒杀开始时间，为null时不限制
+     * @param endTime   秒杀结束时间，为null时不限制
+     */
+    public void init(Long voucherId, int stock, LocalDateTime beginTime, LocalDateTime endTime) {
+        init(voucherId, stock, shards, beginTime, endTime);
+    }
+
+    public void init(Long voucherId, int stock, int shardCount) {
+        init(voucherId, stock, shardCount, null, null);
+    }
+
+    public void init(Long voucherId, int stock, int shardCount, LocalDateTime beginTime, LocalDateTime endTime) {
+        int m = Math.max(shardCount, 1);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(m));
+            //秒杀时间写在库存前面，和库存放在同一个分片(hash tag)上，脚本里一起判断
+            for (int i = 0; i < m; i++) {
+                String windowKey = m == 1 ? windowKey(voucherId) : windowKey(voucherId, i);
+                conn.del(windowKey);
+                if (beginTime != null) {
+                    conn.hSet(windowKey, "begin", String.valueOf(beginTime.atZone(ZONE).toEpochSecond()));
+                }
+                if (endTime != null) {
+                    conn.hSet(windowKey, "end", String.valueOf(endTime.atZone(ZONE).toEpochSecond()));
+                }
+            }
+            if (m == 1) {
+                conn.set(stockKey(voucherId), String.valueOf(stock));
+                return null;
+            }
+            for (int i = 0; i < m; i++) {
+                //余数分给前面的分片
+                int part = stock / m + (i < stock % m ? 1 : 0);
+                conn.set(stockKey(voucherId, i), String.valueOf(part));
+            }
+            return null;
+        });
+        shardCache.put(voucherId, m);
+        //重新写入了库存，清除所有节点上的售罄标记
+        clearSoldOut(voucherId);
+    }
+
+    /**
+     * 从数据库重建秒杀券在Redis中的数据：先写下单用户集合，再写库存，库存出现时一人一单的判断已经生效
+     *
+     * @param voucherId 优惠券id
+     * @param stock     数据库中的剩余库存
+     * @param userIds   已经下单的用户
+     * @param beginTime 秒杀开始时间
+     * @param endTime   秒杀结束时间
+     */
+    public void restore(Long voucherId, int stock, List<Long> userIds, LocalDateTime beginTime, LocalDateTime endTime) {
+        //沿用原来的分片数，Redis数据丢失时按当前配置
+        String saved = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        int m = saved == null ? Math.max(shards, 1) : Integer.parseInt(saved);
+        //1.删除旧的下单用户集合
+        List<String> orderKeys = new ArrayList<>(m);
+        List<String> oldKeys = new ArrayList<>(m + 3);
+        if (m == 1) {
+            orderKeys.add(orderKey(voucherId));
+            //顺便删除没有hash tag的老key：seckill:stock:id、seckill:order:id、seckill:window:id
+            oldKeys.add(SECKILL_STOCK_KEY + voucherId);
+            oldKeys.add(SECKILL_ORDER_KEY + voucherId);
+            oldKeys.add(SECKILL_WINDOW_KEY + voucherId);
+        } else {
+            for (int i = 0; i < m; i++) {
+                orderKeys.add(orderKey(voucherId, i));
+            }
+        }
+        oldKeys.addAll(orderKeys);
+        stringRedisTemplate.delete(oldKeys);
+        //2.分批管道写入下单用户，每个用户写到自己的分片
+        for (int from = 0; from < userIds.size(); from += RESTORE_BATCH_SIZE) {
+            addOrders(orderKeys, userIds.subList(from, Math.min(from + RESTORE_BATCH_SIZE, userIds.size())));
+        }
+        //3.写入秒杀时间和库存
+        init(voucherId, stock, m, beginTime, endTime);
+    }
+
+    /**
+     * 把用户补写到下单用户集合，每个用户写到自己的分片
+     */
+    public void addOrders(Long voucherId, List<Long> userIds) {
+        int m = shardsOf(voucherId);
+        List<String> orderKeys = new ArrayList<>(m);
+        for (int i = 0; i < m; i++) {
+            orderKeys.add(orderKeyOf(voucherId, i));
+        }
+        addOrders(orderKeys, userIds);
+    }
+
+    private void addOrders(List<String> orderKeys, List<Long> userIds) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long userId : userIds) {
+                conn.sAdd(orderKeys.get((int) (userId % orderKeys.size())), userId.toString());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 把用户从下单用户集合中移除，并把库存还给他所在的分片，两步在一个脚本里完成
+     *
+     * @return 用户确实在集合中并且已经归还库存时返回true
+     */
+    public boolean release(Long voucherId, Long userId) {
+        int shard = (int) (userId % shardsOf(voucherId));
+        Long r = stringRedisTemplate.execute(
+                RELEASE_SCRIPT,
+                Arrays.asList(orderKeyOf(voucherId, shard), stockKeyOf(voucherId, shard)),
+                userId.toString());
+        return r != null && r == 1;
+    }
+
+    /**
+     * 调整库存，加在0号分片上
+     */
+    public void adjustStock(Long voucherId, long delta) {
+        stringRedisTemplate.opsForValue().increment(stockKeyOf(voucherId, 0), delta);
+        if (delta > 0) {
+            clearSoldOut(voucherId);
+        }
+    }
+
+    /**
+     * Redis中 剩余库存 + 已下单用户数，秒杀脚本扣库存和记录用户是同时进行的，所以这个值在秒杀过程中保持不变
+     */
+    public long stockPlusOrders(Long voucherId) {
+        int m = shardsOf(voucherId);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < m; i++) {
+                conn.get(stockKeyOf(voucherId, i));
+                conn.sCard(orderKeyOf(voucherId, i));
+            }
+            return null;
+        });
+        long total = 0;
+        for (Object result : results) {
+            if (result != null) {
+                total += Long.parseLong(result.toString());
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 秒杀入口是否已经打开(库存预热已完成)
+     */
+    public boolean isReady() {
+        return ready.get();
+    }
+
+    public void setReady(boolean ready) {
+        this.ready.set(ready);
+    }
+
+    /**
+     * 集群中是否有节点正在强制预热(重建库存和下单用户)，预热期间所有节点都不能秒杀
+     */
+    public boolean isWarming() {
+        long now = System.currentTimeMillis();
+        if (now - warmingCheckedAt > WARMING_CHECK_MILLIS) {
+            warmingCheckedAt = now;
+            try {
+                warming = Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_WARMING_KEY));
+            } catch (RuntimeException e) {
+                log.debug("查询预热标记异常！", e);
+            }
+        }
+        return warming;
+    }
+
+    /**
+     * 开始强制预热：写入共享的预热标记并通知所有节点，标记带过期时间，预热的节点挂了也不会一直关闭秒杀
+     */
+    public void beginWarming() {
+        stringRedisTemplate.opsForValue().set(SECKILL_WARMING_KEY, "1", SECKILL_WARMING_TTL, TimeUnit.SECONDS);
+        warming = true;
+        warmingCheckedAt = System.currentTimeMillis();
+        stringRedisTemplate.convertAndSend(SECKILL_WARMING_CHANNEL, "1");
+    }
+
+    public void endWarming() {
+        stringRedisTemplate.delete(SECKILL_WARMING_KEY);
+        warming = false;
+        warmingCheckedAt = System.currentTimeMillis();
+        stringRedisTemplate.convertAndSend(SECKILL_WARMING_CHANNEL, "0");
+    }
+
+    /**
+     * 本地判断优惠券是否已经售罄，不访问Redis
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long at = soldOut.get(voucherId);
+        if (at == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - at > SOLD_OUT_TTL_MILLIS) {
+            soldOut.remove(voucherId, at);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 补充库存后调用，清除本地和其它节点上的售罄标记
+     */
+    public void clearSoldOut(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "0:" + voucherId);
+    }
+
+    private void markSoldOut(Long voucherId) {
+        if (soldOut.put(voucherId, System.currentTimeMillis()) == null) {
+            //第一次发现售罄时才广播
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "1:" + voucherId);
+            log.debug("优惠券{}已售罄", voucherId);
+        }
+    }
+
+    /**
+     * 尝试扣减库存并记录下单用户，有购买资格时生成订单id、发送消息并把订单状态记为排队中，网络往返见{@link #doAcquire}
+     *
+     * @return 大于0：订单id，-1：库存不足，-2：重复下单，-4：秒杀还未开始，-5：秒杀已经结束，-6：正在预热
+     */
+    public long tryAcquire(Long voucherId, Long userId) {
+        //其它节点正在重建库存和下单用户
+        if (isWarming()) {
+            return -6;
+        }
+        long r = doAcquire(voucherId, userId);
+        if (r == -1) {
+            markSoldOut(voucherId);
+        }
+        return r;
+    }
+
+    /**
+     * 网络往返：没有购买资格(重复下单、不在秒杀时间内、本分片有库存时售罄)只有脚本一次；
+     * 拿到购买资格时是脚本 + 一次pipeline(订单状态和消息)两次，分片模式需要借库存时每个相邻分片再多两次
+     * 消息队列和订单状态不在优惠券的slot上，没法和脚本合成一个原子操作：
+     * 如果节点在脚本和pipeline之间宕机，Redis里会留下一个扣了库存、没有订单消息的用户，
+     * 这个用户超过seckill.reconcile.grace-seconds仍未落库时，由对账任务(seckill.reconcile.repair=true)还回库存和下单资格
+     *
+     * @return 大于0：订单id，小于0：同{@link #tryAcquire}
+     */
+    private long doAcquire(Long voucherId, Long userId) {
+        long nowSecond = LocalDateTime.now().atZone(ZONE).toEpochSecond();
+        int m = shardsOf(voucherId);
+        if (m == 1) {
+            Long r = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Arrays.asList(stockKey(voucherId), orderKey(voucherId), windowKey(voucherId)),
+                    userId.toString(), String.valueOf(nowSecond));
+            if (r == null || r < 0) {
+                return r == null ? -1 : r;
+            }
+            return enqueue(voucherId, userId);
+        }
+        //1.先在用户所在的分片下单
+        int home = (int) (userId % m);
+        long r = acquireOnShard(voucherId, userId, nowSecond, home, 0);
+        //2.本分片库存不足，依次向相邻分片借一个库存，借到后存进本分片再下单
+        for (int step = 1; r == -3 && step < m; step++) {
+            int neighbour = (home + step) % m;
+            Long borrowed = stringRedisTemplate.execute(
+                    BORROW_SCRIPT, Collections.singletonList(stockKey(voucherId, neighbour)));
+            if (borrowed != null && borrowed == 1) {
+                r = acquireOnShard(voucherId, userId, nowSecond, home, 1);
+            }
+        }
+        //3.所有分片都没有库存了
+        if (r < 0) {
+            return r == -3 ? -1 : r;
+        }
+        //4.拿到购买资格，生成订单id并发送消息，这些key不在分片的slot上，不能放进分片脚本
+        return enqueue(voucherId, userId);
+    }
+
+    private long acquireOnShard(Long voucherId, Long userId, long nowSecond, int shard, int carry) {
+        return stringRedisTemplate.execute(
+                SECKILL_SHARD_SCRIPT,
+                Arrays.asList(stockKey(voucherId, shard), orderKey(voucherId, shard), windowKey(voucherId, shard)),
+                userId.toString(), String.valueOf(carry), String.valueOf(nowSecond));
+    }
+
+    /**
+     * 拿到购买资格之后：生成订单id，订单状态记为排队中，发送消息到stream.orders
+     * 订单id由RedisIdWorker生成(号段模式在本地分配，不访问Redis)，订单状态和消息放在同一个pipeline里，一次网络往返
+     * 不能确认消息已经发送成功时，把库存和下单用户还回去，用户可以重新抢购；
+     * 即使消息其实已经写入，数据库的一人一单和库存判断也会挡住重复的订单
+     *
+     * @return 订单id
+     */
+    private long enqueue(Long voucherId, Long userId) {
+        long orderId;
+        try {
+            orderId = redisIdWorker.nextId("order");
+        } catch (RuntimeException e) {
+            release(voucherId, userId);
+            throw e;
+        }
+        String id = String.valueOf(orderId);
+        String statusKey = SeckillOrderStatus.keyOf(orderId);
+        Map<String, String> message = new LinkedHashMap<>();
+        message.put("voucherId", voucherId.toString());
+        message.put("userId", userId.toString());
+        message.put("id", id);
+        try {
+            //1.订单状态：Q 排队中 2.发送消息 XADD stream.orders * voucherId v userId u id orderId
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.hSet(statusKey, id, QUEUED);
+                conn.expire(statusKey, SECKILL_ORDER_STATUS_TTL);
+                conn.xAdd(QUEUE_NAME, message);
+                return null;
+            });
+        } catch (RedisPipelineException e) {
+            List<Object> results = e.getPipelineResult();
+            if (results.size() > 2 && !(results.get(2) instanceof Throwable)) {
+                //消息已经发送，只是订单状态没写进去，状态只是给前端查询用的，不影响下单
+                log.debug("订单{}状态写入异常！", orderId, e);
+                return orderId;
+            }
+            release(voucherId, userId);
+            throw e;
+        } catch (RuntimeException e) {
+            release(voucherId, userId);
+            throw e;
+        }
+        return orderId;
+    }
+
+    /**
+     * 消息队列中还没有落库的秒杀订单(消费者组还没有确认的消息)，只保留指定的优惠券
+     *
+     * @param voucherIds 要查的优惠券
+     * @param limit      最多读取的消息数
+     * @return 优惠券id -> (用户id -> 订单id)；消息超过limit没有读完时返回null，这时不能认为其它订单不在队列中
+     */
+    public Map<Long, Map<Long, Long>> queuedOrders(Collection<Long> voucherIds, long limit) {
+        Map<Long, Map<Long, Long>> queued = new HashMap<>();
+        Set<String> wanted = voucherIds.stream().map(String::valueOf).collect(Collectors.toSet());
+        boolean complete = streamTrimmer.forEachUnacknowledged(QUEUE_NAME, GROUP_NAME, limit, record -> {
+            Map<Object, Object> value = record.getValue();
+            Object voucherId = value.get("voucherId");
+            Object userId = value.get("userId");
+            Object orderId = value.get("id");
+            if (voucherId == null || userId == null || orderId == null || !wanted.contains(voucherId.toString())) {
+                return;
+            }
+            queued.computeIfAbsent(Long.valueOf(voucherId.toString()), id -> new HashMap<>())
+                    .put(Long.valueOf(userId.toString()), Long.valueOf(orderId.toString()));
+        });
+        return complete ? queued : null;
+    }
+
+    /**
+     * Redis中剩余的库存，分片模式下是所有分片之和
+     */
+    public long remaining(Long voucherId) {
+        int m = shardsOf(voucherId);
+        List<String> keys = new ArrayList<>(m);
+        if (m == 1) {
+            keys.add(stockKey(voucherId));
+        } else {
+            for (int i = 0; i < m; i++) {
+                keys.add(stockKey(voucherId, i));
+            }
+        }
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+        long total = 0;
+        if (stocks != null) {
+            for (String stock : stocks) {
+                if (stock != null) {
+                    total += Math.max(Long.parseLong(stock), 0);
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 优惠券的分片数，没有记录的老优惠券按单key处理
+     */
+    public int shardsOf(Long voucherId) {
+        return shardCache.computeIfAbsent(voucherId, id -> {
+            String m = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + id);
+            return m == null ? 1 : Integer.parseInt(m);
+        });
+    }
+
+    /**
+     * 第shard个分片的库存key，单key模式下就是seckill:stock:{id}
+     */
+    public String stockKeyOf(Long voucherId, int shard) {
+        return shardsOf(voucherId) == 1 ? stockKey(voucherId) : stockKey(voucherId, shard);
+    }
+
+    /**
+     * 第shard个分片的下单用户key，单key模式下就是seckill:order:{id}
+     */
+    public String orderKeyOf(Long voucherId, int shard) {
+        return shardsOf(voucherId) == 1 ? orderKey(voucherId) : orderKey(voucherId, shard);
+    }
+
+    /**
+     * 单key模式的库存key，带hash tag {id}，和下单用户、秒杀时间落在同一个slot
+     */
+    public static String stockKey(Long voucherId) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + "}";
+    }
+
+    public static String orderKey(Long voucherId) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + "}";
+    }
+
+    public static String windowKey(Long voucherId) {
+        return SECKILL_WINDOW_KEY + "{" + voucherId + "}";
+    }
+
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String windowKey(Long voucherId, int shard) {
+        return SECKILL_WINDOW_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+}
@@ -0,0 +1,58 @@
+package com.xndp.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 合并同一个key上的并发加载：第一个线程执行加载，同时到达的线程等待它的结果，不会重复查数据库
+ * 等待的线程阻塞在同一个CompletableFuture上，不需要休眠重试
+ */
+public class SingleFlight {
+    //key -> 正在进行的加载
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+    //真正执行加载的次数、直接共享别人结果的次数
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        CompletableFuture<Object> running = calls.putIfAbsent(key, call);
+        if (running != null) {
+            //已经有线程在加载，等待它的结果
+            shared.increment();
+            try {
+                return (T) running.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw e;
+            }
+        }
+        loads.increment();
+        try {
+            T value = loader.get();
+            call.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            //加载结束后移除，之后的请求重新加载(一般会直接命中缓存)
+            calls.remove(key, call);
+        }
+    }
+
+    public long loads() {
+        return loads.sum();
+    }
+
+    public long shared() {
+        return shared.sum();
+    }
+}
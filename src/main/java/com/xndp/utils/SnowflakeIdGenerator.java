@@ -0,0 +1,204 @@
+package com.xndp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.xndp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.xndp.utils.RedisConstants.ID_WORKER_TTL;
+
+/**
+ * 雪花算法id生成器，生成id时不访问Redis
+ * id = 毫秒时间戳(41位) | 机器id(10位) | 序列号(12位)
+ * 机器id在启动时通过 SET id:worker:{n} NX EX 抢占，之后定时续期
+ * 租约以最近一次续期成功的时间为准，Redis不可用期间超过租约就停止生成id(key可能已经过期被别的节点抢走)，
+ * 恢复后重新抢占一个机器id
+ */
+@Slf4j
+public class SnowflakeIdGenerator {
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int MAX_WORKER_ID = (1 << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    //允许等待的最大时钟回拨，超过就直接报错
+    private static final long MAX_BACKWARD_MILLIS = 5L;
+    //租约提前这么久认为到期，留出本机和Redis之间的时钟误差、网络延迟
+    private static final long LEASE_SAFETY_MILLIS = 1000L;
+
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    //时间戳的起点，毫秒
+    private final long epochMillis;
+    //机器id的租期，秒
+    private final long leaseSeconds;
+    //本节点的标识，用来判断机器id是不是还属于自己
+    private final String owner = UUID.randomUUID().toString(true);
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor();
+
+    //当前的机器id和租约到期时间，一起替换，不会读到新id配旧的到期时间
+    private volatile Lease lease;
+    //上一次生成id的状态：毫秒时间戳 << 12 | 序列号
+    private final AtomicLong state = new AtomicLong();
+
+    /**
+     * 机器id和租约到期时间(本机时间，毫秒)
+     */
+    private static class Lease {
+        private final int workerId;
+        private final long deadline;
+
+        private Lease(int workerId, long deadline) {
+            this.workerId = workerId;
+            this.deadline = deadline;
+        }
+    }
+
+    public SnowflakeIdGenerator(StringRedisTemplate stringRedisTemplate, long epochSecond) {
+        this(stringRedisTemplate, epochSecond, ID_WORKER_TTL);
+    }
+
+    public SnowflakeIdGenerator(StringRedisTemplate stringRedisTemplate, long epochSecond, long leaseSeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.epochMillis = epochSecond * 1000;
+        this.leaseSeconds = leaseSeconds;
+    }
+
+    /**
+     * 抢占一个机器id，并开始定时续期
+     */
+    public void register() {
+        claim();
+        long period = Math.max(leaseSeconds / 3, 1);
+        heartbeat.scheduleAtFixedRate(this::renew, period, period, TimeUnit.SECONDS);
+    }
+
+    private void claim() {
+        //从随机位置开始找，减少多个节点同时启动时的冲突
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            int id = (start + i) & MAX_WORKER_ID;
+            //租约从发出命令之前开始算，宁可短一点
+            long sentAt = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, owner, leaseSeconds, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                lease = new Lease(id, deadlineFrom(sentAt));
+                log.info("雪花算法机器id：{}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有可用的机器id");
+    }
+
+    //续期成功就延长租约；机器id已经过期或者被别的节点占用，重新抢占一个；Redis不可用时租约不延长
+    private void renew() {
+        Lease current = lease;
+        long sentAt = System.currentTimeMillis();
+        try {
+            if (current != null) {
+                Long renewed = stringRedisTemplate.execute(
+                        RENEW_SCRIPT,
+                        Collections.singletonList(ID_WORKER_KEY + current.workerId),
+                        owner, String.valueOf(leaseSeconds));
+                if (renewed != null && renewed == 1) {
+                    lease = new Lease(current.workerId, deadlineFrom(sentAt));
+                    return;
+                }
+                log.error("雪花算法机器id{}已失效，重新抢占", current.workerId);
+            }
+            //先让旧的id失效，再抢占新的
+            lease = null;
+            claim();
+        } catch (Exception e) {
+            if (current != null && lease == current) {
+                log.warn("机器id{}续期失败，租约还剩{}毫秒", current.workerId, current.deadline - System.currentTimeMillis(), e);
+            } else {
+                log.error("抢占机器id失败，暂停生成id", e);
+            }
+        }
+    }
+
+    private long deadlineFrom(long sentAt) {
+        return sentAt + TimeUnit.SECONDS.toMillis(leaseSeconds) - LEASE_SAFETY_MILLIS;
+    }
+
+    /**
+     * 释放机器id
+     */
+    public void release() {
+        heartbeat.shutdownNow();
+        Lease current = lease;
+        lease = null;
+        if (current != null) {
+            stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(ID_WORKER_KEY + current.workerId), owner);
+        }
+    }
+
+    public long nextId() {
+        Lease current = lease;
+        //租约到期后机器id可能已经被别的节点抢走，继续生成会产生重复id
+        if (current == null || System.currentTimeMillis() >= current.deadline) {
+            throw new IllegalStateException("雪花算法机器id无效或租约已过期");
+        }
+        int worker = current.workerId;
+        while (true) {
+            long last = state.get();
+            long lastMillis = last >>> SEQUENCE_BITS;
+            long now = System.currentTimeMillis() - epochMillis;
+            if (now < lastMillis) {
+                //时钟回拨：回拨很小就等时间追上来，否则直接报错
+                long backward = lastMillis - now;
+                if (backward > MAX_BACKWARD_MILLIS) {
+                    throw new IllegalStateException("时钟回拨" + backward + "毫秒，拒绝生成id");
+                }
+                sleep(backward);
+                continue;
+            }
+            long next;
+            if (now == lastMillis) {
+                long sequence = (last & SEQUENCE_MASK) + 1;
+                if (sequence > SEQUENCE_MASK) {
+                    //这一毫秒的序列号用完了，等下一毫秒
+                    Thread.yield();
+                    continue;
+                }
+                next = last + 1;
+            } else {
+                next = now << SEQUENCE_BITS;
+            }
+            if (state.compareAndSet(last, next)) {
+                long millis = next >>> SEQUENCE_BITS;
+                return millis << (WORKER_BITS + SEQUENCE_BITS) | (long) worker << SEQUENCE_BITS | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待时钟回拨时被中断", e);
+        }
+    }
+}
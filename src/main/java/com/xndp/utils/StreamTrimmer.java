@@ -0,0 +1,188 @@
+package com.xndp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Stream消息清理
+ * 只删除所有消费者组都已经确认过的消息：每个组取 最早的pending消息id 和 last-delivered-id 中较小的一个，
+ * 再在所有组里取最小值，比它小的消息都已经ACK，可以用 XTRIM MINID 删除
+ * 同样的方法也可以找出一个组还没有确认的消息：pending-list里的 + last-delivered-id之后还没有投递的
+ */
+@Component
+public class StreamTrimmer {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //XPENDING、XRANGE每次查询的条数
+    private static final int PAGE_SIZE = 1000;
+
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT;
+    private static final DefaultRedisScript<Long> MEMORY_SCRIPT;
+
+    static {
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("stream_trim.lua"));
+        TRIM_SCRIPT.setResultType(Long.class);
+        MEMORY_SCRIPT = new DefaultRedisScript<>();
+        MEMORY_SCRIPT.setLocation(new ClassPathResource("memory_usage.lua"));
+        MEMORY_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 删除已经被所有消费者组确认的消息
+     *
+     * @param key stream的key
+     * @return 删除的消息数
+     */
+    public long trimAcknowledged(String key) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+            return 0;
+        }
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(key);
+        if (groups.isEmpty()) {
+            //还没有消费者组，消息都没被消费过
+            return 0;
+        }
+        RecordId safe = null;
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            RecordId groupSafe = RecordId.of(group.lastDeliveredId());
+            if (group.pendingCount() > 0) {
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(key, group.groupName());
+                RecordId oldest = summary.minRecordId();
+                if (oldest != null && compare(oldest, groupSafe) < 0) {
+                    groupSafe = oldest;
+                }
+            }
+            if (safe == null || compare(groupSafe, safe) < 0) {
+                safe = groupSafe;
+            }
+        }
+        if (safe.getTimestamp() == 0 && safe.getSequence() == 0) {
+            return 0;
+        }
+        Long trimmed = stringRedisTemplate.execute(TRIM_SCRIPT, Collections.singletonList(key), safe.getValue());
+        return trimmed == null ? 0 : trimmed;
+    }
+
+    /**
+     * 依次访问消费者组还没有确认的消息：已经投递但还在pending-list里的，和last-delivered-id之后还没有投递的
+     * 分页读取，内存中只保留一页
+     *
+     * @param key    stream的key
+     * @param group  消费者组，组还不存在时所有消息都算没有确认
+     * @param limit  最多读取的消息数(包括pending消息之间已经确认、被跳过的)
+     * @param action 对每条没有确认的消息执行，同一条消息可能被访问两次(读取过程中刚被投递)
+     * @return 是否访问完了所有没有确认的消息，超过limit时返回false
+     */
+    public boolean forEachUnacknowledged(String key, String group, long limit,
+                                         Consumer<MapRecord<String, Object, Object>> action) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+            return true;
+        }
+        //1.组的last-delivered-id，在它之前投递的消息要么已经确认，要么在pending-list里
+        RecordId lastDelivered = RecordId.of("0-0");
+        long pendingCount = 0;
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(key);
+        for (int i = 0; i < groups.size(); i++) {
+            if (group.equals(groups.get(i).groupName())) {
+                lastDelivered = RecordId.of(groups.get(i).lastDeliveredId());
+                pendingCount = groups.get(i).pendingCount();
+            }
+        }
+        long visited = 0;
+        //2.pending-list：每页 xpending key group start + PAGE_SIZE，再XRANGE这一页的id范围，只保留pending的
+        String start = "-";
+        while (pendingCount > 0) {
+            PendingMessages page = stringRedisTemplate.opsForStream().pending(key, group,
+                    Range.rightUnbounded(Range.Bound.inclusive(start)), PAGE_SIZE);
+            if (page.isEmpty()) {
+                break;
+            }
+            Set<String> pendingIds = new HashSet<>();
+            for (PendingMessage message : page) {
+                pendingIds.add(message.getIdAsString());
+            }
+            RecordId last = page.get(page.size() - 1).getId();
+            String from = page.get(0).getIdAsString();
+            while (true) {
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                        .range(key, Range.closed(from, last.getValue()), Limit.limit().count(PAGE_SIZE));
+                if (records == null || records.isEmpty()) {
+                    break;
+                }
+                for (MapRecord<String, Object, Object> record : records) {
+                    if (pendingIds.contains(record.getId().getValue())) {
+                        action.accept(record);
+                    }
+                }
+                visited += records.size();
+                if (visited >= limit) {
+                    return false;
+                }
+                if (records.size() < PAGE_SIZE) {
+                    break;
+                }
+                from = after(records.get(records.size() - 1).getId());
+            }
+            if (page.size() < PAGE_SIZE) {
+                break;
+            }
+            start = after(last);
+        }
+        //3.还没有投递的：last-delivered-id之后的消息
+        start = after(lastDelivered);
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                    .range(key, Range.rightUnbounded(Range.Bound.inclusive(start)), Limit.limit().count(PAGE_SIZE));
+            if (records == null || records.isEmpty()) {
+                return true;
+            }
+            records.forEach(action);
+            visited += records.size();
+            if (records.size() < PAGE_SIZE) {
+                return true;
+            }
+            if (visited >= limit) {
+                return false;
+            }
+            start = after(records.get(records.size() - 1).getId());
+        }
+    }
+
+    //紧跟在id后面的下一个id，用来分页
+    private static String after(RecordId id) {
+        return id.getTimestamp() + "-" + (id.getSequence() + 1);
+    }
+
+    /**
+     * key占用的内存，字节
+     */
+    public long memoryUsage(String key) {
+        Long bytes = stringRedisTemplate.execute(MEMORY_SCRIPT, Collections.singletonList(key));
+        return bytes == null ? 0 : bytes;
+    }
+
+    private static int compare(RecordId a, RecordId b) {
+        int c = Long.compare(a.getTimestamp(), b.getTimestamp());
+        return c != 0 ? c : Long.compare(a.getSequence(), b.getSequence());
+    }
+}
@@ -1,35 +1,381 @@
 package com.xndp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.json.JSON;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.xndp.utils.RedisConstants.*;
 
 /**
  * 封装redis工具类
  * 使用到了函数式编程
+ * 两级缓存：L1是本地Caffeine缓存(按条数淘汰，过期时间很短)，存反序列化好的对象，L2是Redis
+ * 删除、覆盖缓存时通过Redis发布订阅通知所有节点删除本地缓存
+ * Redis中的值通过CacheSerializer编码，默认是二进制格式，超过阈值时压缩，之前写入的JSON仍然能读
+ * 每类数据按CachePolicy查询(穿透、互斥、逻辑过期，是否使用L1，过期时间抖动)，逻辑过期的重建共用一个有界线程池
+ * 缓存雪崩：过期时间随机浮动；每类数据同时查数据库的请求数有上限，满了返回最近读到的旧值
+ * 热点key：Count-Min Sketch统计滑动窗口内的访问次数，热点key复制到单独的本地缓存，不使用L1的策略也不再每次访问Redis
  */
 @Slf4j//日志
 @Component
 public class cacheClient {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+    @Resource
+    private BloomFilters bloomFilters;
+
+    //本地缓存的最大条数和过期时间
+    @Value("${cache.local.maximum-size:10000}")
+    private long localMaximumSize;
+    @Value("${cache.local.ttl-seconds:10}")
+    private long localTtlSeconds;
+
+    //缓存值的编码格式(json、binary)和压缩阈值(字节)
+    @Value("${cache.codec.format:binary}")
+    private String codecFormat;
+    @Value("${cache.codec.compress-threshold:1024}")
+    private int compressThreshold;
+    private CacheSerializer serializer;
+    //按字节读写缓存值
+    private RedisTemplate<String, byte[]> bytesRedisTemplate;
+    //Redis中表示空值的值
+    private static final byte[] NULL_BYTES = new byte[0];
+
+    //本地缓存中表示空值(数据库中不存在)的对象，Caffeine不能存null
+    private static final Object NULL_VALUE = new Object();
+    private Cache<String, Object> localCache;
+    //Redis命中、空值命中、查数据库的次数
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder redisNullHits = new LongAdder();
+    private final LongAdder dbLoads = new LongAdder();
+    //被布隆过滤器拦截的次数
+    private final LongAdder bloomRejects = new LongAdder();
+
+    //缓存未命中时，合并同一个key的并发加载
+    private final SingleFlight singleFlight = new SingleFlight();
+    //是否跨节点合并加载：拿到Redis锁的节点查数据库，其它节点等待通知
+    @Value("${cache.single-flight.distributed:false}")
+    private boolean distributedSingleFlight;
+    //等待其它节点加载的最长时间，超时后自己查数据库
+    private static final long LOAD_WAIT_MILLIS = 3000L;
+    //key -> 等待其它节点加载完成的通知
+    private final Map<String, CompletableFuture<Void>> loadedWaiters = new ConcurrentHashMap<>();
+
+    //XFetch的beta，越大越早刷新，1是推荐值
+    @Value("${cache.xfetch.beta:1.0}")
+    private double xfetchBeta;
+    //逻辑过期之前就触发的重建次数
+    private final LongAdder earlyRefreshes = new LongAdder();
+
+    //逻辑过期的重建线程池：线程数和队列长度都有上限，队列满了就放弃这次重建，继续返回旧值
+    @Value("${cache.rebuild.threads:4}")
+    private int rebuildThreads;
+    @Value("${cache.rebuild.queue-size:256}")
+    private int rebuildQueueSize;
+    private ThreadPoolExecutor rebuildExecutor;
+    //按参数调用的旧方法使用的策略：模式 + 前缀 + 过期时间 -> 策略
+    private final Map<String, CachePolicy> adHocPolicies = new ConcurrentHashMap<>();
+
+    //按参数写入的缓存和空值，过期时间随机浮动的比例
+    @Value("${cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+    //最近从Redis或数据库读到的值，查数据库的名额用完时返回
+    @Value("${cache.avalanche.stale-size:10000}")
+    private long staleSize;
+    @Value("${cache.avalanche.stale-seconds:600}")
+    private long staleSeconds;
+    //名额用完又没有旧值时等待的时间
+    @Value("${cache.avalanche.wait-millis:200}")
+    private long loadWaitMillis;
+    private Cache<String, Object> staleCache;
+
+    //热点key检测：采样率、窗口长度、窗口内访问多少次算热点、最多多少个热点key
+    @Value("${cache.hot-key.enabled:true}")
+    private boolean hotKeyEnabled;
+    @Value("${cache.hot-key.sample-rate:0.1}")
+    private double hotKeySampleRate;
+    @Value("${cache.hot-key.window-seconds:10}")
+    private long hotKeyWindowSeconds;
+    @Value("${cache.hot-key.threshold:1000}")
+    private long hotKeyThreshold;
+    @Value("${cache.hot-key.max-keys:200}")
+    private int hotKeyMaxKeys;
+    //热点key在本地的副本的过期时间
+    @Value("${cache.hot-key.ttl-seconds:5}")
+    private long hotKeyTtlSeconds;
+    private HotKeyDetector hotKeyDetector;
+    private Cache<String, Object> hotCache;
+    private final ScheduledExecutorService hotKeyScheduler = Executors.newSingleThreadScheduledExecutor();
 
-    //普通key
+    @PostConstruct
+    private void init() {
+        serializer = new CacheSerializer("json".equals(codecFormat) ? new JsonCacheCodec() : new BinaryCacheCodec(),
+                compressThreshold);
+        bytesRedisTemplate = new RedisTemplate<>();
+        bytesRedisTemplate.setConnectionFactory(stringRedisTemplate.getConnectionFactory());
+        bytesRedisTemplate.setKeySerializer(RedisSerializer.string());
+        bytesRedisTemplate.setValueSerializer(RedisSerializer.byteArray());
+        bytesRedisTemplate.afterPropertiesSet();
+        rebuildExecutor = new ThreadPoolExecutor(rebuildThreads, rebuildThreads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(rebuildQueueSize), new ThreadPoolExecutor.AbortPolicy());
+        rebuildExecutor.allowCoreThreadTimeOut(true);
+        localCache = Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(localTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        staleCache = Caffeine.newBuilder()
+                .maximumSize(staleSize)
+                .expireAfterWrite(staleSeconds, TimeUnit.SECONDS)
+                .build();
+        hotKeyDetector = new HotKeyDetector(hotKeySampleRate, hotKeyThreshold, hotKeyMaxKeys);
+        hotCache = Caffeine.newBuilder()
+                .maximumSize(hotKeyMaxKeys)
+                .expireAfterWrite(hotKeyTtlSeconds, TimeUnit.SECONDS)
+                .build();
+        //窗口分段前进，不再热的key删除本地副本
+        long slotMillis = TimeUnit.SECONDS.toMillis(hotKeyWindowSeconds) / HotKeyDetector.SLOTS;
+        hotKeyScheduler.scheduleAtFixedRate(() -> {
+            try {
+                hotCache.invalidateAll(hotKeyDetector.rotate());
+            } catch (Exception e) {
+                log.debug("热点key窗口滚动失败", e);
+            }
+        }, slotMillis, slotMillis, TimeUnit.MILLISECONDS);
+        //其它节点修改了缓存，删除本地缓存、热点key副本和旧值，消息内容就是key
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String key = new String(message.getBody(), StandardCharsets.UTF_8);
+            localCache.invalidate(key);
+            hotCache.invalidate(key);
+            staleCache.invalidate(key);
+        }, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        //其它节点加载完成，唤醒等待这个key的线程
+        listenerContainer.addMessageListener((message, pattern) -> {
+            CompletableFuture<Void> loaded = loadedWaiters.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (loaded != null) {
+                loaded.complete(null);
+            }
+        }, new ChannelTopic(CACHE_LOADED_CHANNEL));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        rebuildExecutor.shutdownNow();
+        hotKeyScheduler.shutdownNow();
+    }
+
+    //普通key，过期时间随机浮动
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        bytesRedisTemplate.opsForValue().set(key, serializer.serialize(value),
+                CachePolicy.jitter(unit.toSeconds(time), ttlJitter), TimeUnit.SECONDS);
+        evictLocal(key);
+    }
+
+    /**
+     * 删除缓存，同时删除所有节点上的本地缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        evictLocal(key);
+    }
+
+    /**
+     * 数据修改后删除对应的缓存
+     */
+    public void evict(CachePolicy policy, Object id) {
+        delete(policy.getKeyPrefix() + id);
+    }
+
+    private void evictLocal(String key) {
+        localCache.invalidate(key);
+        hotCache.invalidate(key);
+        staleCache.invalidate(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    //解码Redis中的值，空值返回NULL_VALUE；解码失败(比如实体类的字段变了)返回null，当作未命中
+    private <R> Object decode(String key, byte[] bytes, Class<R> type) {
+        if (bytes.length == 0) {
+            return NULL_VALUE;
+        }
+        try {
+            return serializer.deserialize(bytes, type);
+        } catch (RuntimeException e) {
+            log.debug("缓存{}解码失败，重新加载", key, e);
+            return null;
+        }
+    }
+
+    //记录一次访问，先查热点key副本，策略不使用本地缓存时返回null
+    private Object getLocal(CachePolicy policy, String key) {
+        if (hotKeyEnabled && hotKeyDetector.record(key)) {
+            Object hot = hotCache.getIfPresent(key);
+            if (hot != null) {
+                policy.hotHits.increment();
+                return hot;
+            }
+        }
+        if (!policy.isLocal()) {
+            return null;
+        }
+        Object value = localCache.getIfPresent(key);
+        if (value != null) {
+            policy.l1Hits.increment();
+        }
+        return value;
+    }
+
+    private void putLocal(CachePolicy policy, String key, Object value) {
+        if (policy.isLocal()) {
+            localCache.put(key, value);
+        }
+        //热点key复制一份到本地，空值不用
+        if (hotKeyEnabled && value != NULL_VALUE && hotKeyDetector.isHot(key)) {
+            hotCache.put(key, value);
+        }
+        if (value != NULL_VALUE) {
+            staleCache.put(key, value);
+        }
+    }
+
+    //空值的过期时间(秒)，也随机浮动
+    private long nullTtlSeconds() {
+        return CachePolicy.jitter(TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL), ttlJitter);
+    }
+
+    /**
+     * 缓存雪崩保护：拿到策略查数据库的名额才执行loader
+     * 名额用完时有旧值就返回旧值(不写缓存)，没有旧值就等待，等待超时抛出CacheBusyException
+     */
+    private Object guardedLoad(CachePolicy policy, String key, Supplier<Object> loader) {
+        if (!policy.tryAcquireLoad()) {
+            Object stale = staleCache.getIfPresent(key);
+            if (stale != null) {
+                policy.staleServes.increment();
+                return stale;
+            }
+            awaitLoadPermit(policy);
+        }
+        try {
+            return loader.get();
+        } finally {
+            policy.releaseLoad();
+        }
+    }
+
+    private void awaitLoadPermit(CachePolicy policy) {
+        try {
+            if (policy.tryAcquireLoad(loadWaitMillis)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        policy.loadRejects.increment();
+        throw new CacheBusyException("缓存" + policy.getName() + "查数据库的请求过多");
+    }
+
+    /**
+     * 各级缓存的命中情况
+     */
+    public Map<String, Object> stats() {
+        CacheStats l1 = localCache.stats();
+        long l2Hits = redisHits.sum() + redisNullHits.sum();
+        long l2Requests = l2Hits + dbLoads.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("l1Size", localCache.estimatedSize());
+        stats.put("l1Hits", l1.hitCount());
+        stats.put("l1Misses", l1.missCount());
+        stats.put("l1HitRate", l1.hitRate());
+        stats.put("l1Evictions", l1.evictionCount());
+        stats.put("l2Hits", l2Hits);
+        stats.put("l2NullHits", redisNullHits.sum());
+        stats.put("l2HitRate", l2Requests == 0 ? 1.0 : (double) l2Hits / l2Requests);
+        stats.put("dbLoads", dbLoads.sum());
+        stats.put("bloomRejects", bloomRejects.sum());
+        stats.put("singleFlightLoads", singleFlight.loads());
+        stats.put("singleFlightShared", singleFlight.shared());
+        stats.put("earlyRefreshes", earlyRefreshes.sum());
+        stats.put("codec", codecFormat);
+        stats.put("rebuildActive", rebuildExecutor.getActiveCount());
+        stats.put("rebuildQueued", rebuildExecutor.getQueue().size());
+        stats.put("staleSize", staleCache.estimatedSize());
+        stats.put("hotKeys", hotKeyDetector.size());
+        //每个策略的命中、加载、重建次数
+        Map<String, Object> policies = new LinkedHashMap<>();
+        for (CachePolicy policy : CachePolicies.ALL) {
+            policies.put(policy.getName(), policy.stats());
+        }
+        adHocPolicies.values().forEach(policy -> policies.put(policy.getName(), policy.stats()));
+        stats.put("policies", policies);
+        return stats;
+    }
+
+    /**
+     * 当前的热点key和窗口内的访问次数估算值
+     */
+    public Map<String, Object> hotKeys() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", hotKeyEnabled);
+        result.put("windowSeconds", hotKeyWindowSeconds);
+        result.put("threshold", hotKeyThreshold);
+        result.put("keys", hotKeyDetector.hotKeys());
+        return result;
+    }
+
+    //没有登记策略的调用，按前缀和过期时间生成一个策略，统计仍然按前缀汇总
+    private CachePolicy adHoc(CachePolicy.Mode mode, String keyPrefix, Long time, TimeUnit unit) {
+        long seconds = unit.toSeconds(time);
+        return adHocPolicies.computeIfAbsent(mode + ":" + keyPrefix + ":" + seconds, k -> {
+            String name = keyPrefix + "(" + mode + ", " + seconds + "s)";
+            switch (mode) {
+                case MUTEX:
+                    return CachePolicy.mutex(name, keyPrefix, seconds, TimeUnit.SECONDS).jitter(ttlJitter);
+                case LOGICAL_EXPIRE:
+                    return CachePolicy.logicalExpire(name, keyPrefix, seconds, TimeUnit.SECONDS).jitter(ttlJitter);
+                default:
+                    return CachePolicy.passThrough(name, keyPrefix, seconds, TimeUnit.SECONDS).jitter(ttlJitter);
+            }
+        });
     }
     //热点key，解决缓存击穿
 
@@ -40,12 +386,42 @@ public class cacheClient {
      * @param unit  单位
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
+        setWithLogicalExpire(key, value, time, unit, 0L);
+    }
+
+    /**
+     * @param delta 重建缓存花费的时间(毫秒)
+     */
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, Long delta) {
         //设置逻辑过期时间
         RedisData redisData = new RedisData();
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        redisData.setDelta(delta);
         //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        bytesRedisTemplate.opsForValue().set(key, serializer.serialize(redisData));
+    }
+
+    /**
+     * 按策略查询缓存
+     *
+     * @param policy     缓存策略，见CachePolicies
+     * @param id         查找的id
+     * @param type       数据的类型
+     * @param dbFallback 查找数据库的函数
+     * @return 数据库中不存在时返回null
+     */
+    public <R, ID> R get(CachePolicy policy, ID id, Class<R> type, Function<ID, R> dbFallback) {
+        //0.布隆过滤器判断id一定不存在，不访问Redis和数据库
+        if (!bloomFilters.mightContainKey(policy.getKeyPrefix(), id)) {
+            bloomRejects.increment();
+            return null;
+        }
+        if (policy.getMode() == CachePolicy.Mode.LOGICAL_EXPIRE) {
+            return queryLogical(policy, id, type, dbFallback);
+        }
+        return query(policy, id, type, dbFallback,
+                policy.getMode() == CachePolicy.Mode.MUTEX || distributedSingleFlight);
     }
     //缓存穿透
 
@@ -61,84 +437,368 @@ public class cacheClient {
      * @return
      */
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        return get(adHoc(CachePolicy.Mode.PASS_THROUGH, keyPrefix, time, unit), id, type, dbFallback);
+    }
+
+    /**
+     * 缓存击穿，互斥锁实现：和queryWithPassThrough相同，但总是跨节点合并加载，
+     * 拿到锁的节点查数据库，其它节点等待它写完缓存的通知，不休眠重试
+     */
+    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        return get(adHoc(CachePolicy.Mode.MUTEX, keyPrefix, time, unit), id, type, dbFallback);
+    }
+
+    //缓存击穿，逻辑过期时间解决
+    public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        return get(adHoc(CachePolicy.Mode.LOGICAL_EXPIRE, keyPrefix, time, unit), id, type, dbFallback);
+    }
+
+    private <R, ID> R query(CachePolicy policy, ID id, Class<R> type, Function<ID, R> dbFallback, boolean distributed) {
+        String key = policy.getKeyPrefix() + id;
+        //先查本地缓存，命中时不访问Redis，也不用反序列化
+        Object local = getLocal(policy, key);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
         //1.判断redis是否存在
-        String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = bytesRedisTemplate.opsForValue().get(key);
+        Object value = bytes == null ? null : decode(key, bytes, type);
         //2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {//判空：当参数是"",null,"\t\n"都是false，只有里面是真正的字符串，才是true
+        if (value != null && value != NULL_VALUE) {
             //存在直接返回
-            R r = JSONUtil.toBean(json, type);//转换成对象
-            return r;
+            redisHits.increment();
+            policy.l2Hits.increment();
+            putLocal(policy, key, value);
+            return type.cast(value);
         }
         //解决缓存穿透，如果数据库不存在的值，会存一个空值到redis
         //3.判断命中的，是否是空值
-        if (json != null) {//如果不是null，说明shopJson==""，空值
+        if (value == NULL_VALUE) {
             //返回一个错误信息
+            redisNullHits.increment();
+            policy.nullHits.increment();
+            putLocal(policy, key, NULL_VALUE);
             return null;
         }
         //能走到这里，说明是真的为null，也就是redis中没有缓存
-        //4.不存在，到数据库中查找
-        R r = dbFallback.apply(id);//函数式编程
-        if (r == null) {
-            //5.如果数据库中不存在，将空值，写到redis中
-            //设置空值，解决缓存穿透
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+        //4.不存在，同一个key的并发请求合并成一次加载
+        Object loaded = singleFlight.execute(key, () -> load(policy, key, id, type, dbFallback, distributed));
+        return loaded == NULL_VALUE ? null : type.cast(loaded);
+    }
+
+    //查数据库并写入缓存，返回对象或者NULL_VALUE
+    private <R, ID> Object load(CachePolicy policy, String key, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                boolean distributed) {
+        //跨节点合并：只有拿到锁的节点查数据库
+        String lockKey = LOCK_CACHE_KEY + key;
+        boolean isLock = !distributed || tryLock(lockKey);
+        if (!isLock) {
+            Object value = awaitLoaded(policy, key, type);
+            if (value != null) {
+                return value;
+            }
+            //等待超时，自己查数据库
+        }
+        try {
+            //同时查数据库的请求数有上限，满了先返回旧值
+            return guardedLoad(policy, key, () -> {
+                //到数据库中查找
+                dbLoads.increment();
+                policy.dbLoads.increment();
+                R r = dbFallback.apply(id);//函数式编程
+                if (r == null) {
+                    //5.如果数据库中不存在，将空值，写到redis中
+                    //设置空值，解决缓存穿透
+                    bytesRedisTemplate.opsForValue().set(key, NULL_BYTES, nullTtlSeconds(), TimeUnit.SECONDS);
+                    putLocal(policy, key, NULL_VALUE);
+                    return NULL_VALUE;
+                }
+                //6.存在，写入redis,过期时间按策略随机浮动，自动删除，再次访问时写入缓存
+                bytesRedisTemplate.opsForValue().set(key, serializer.serialize(r), policy.nextTtlSeconds(), TimeUnit.SECONDS);
+                putLocal(policy, key, r);
+                //7.返回
+                return r;
+            });
+        } finally {
+            if (distributed && isLock) {
+                //释放锁，通知等待的节点去Redis取结果
+                unLock(lockKey);
+                stringRedisTemplate.convertAndSend(CACHE_LOADED_CHANNEL, key);
+            }
+        }
+    }
+
+    //等待其它节点加载完成的通知，超时返回null
+    private <R> Object awaitLoaded(CachePolicy policy, String key, Class<R> type) {
+        CompletableFuture<Void> loaded = loadedWaiters.computeIfAbsent(key, k -> new CompletableFuture<>());
+        try {
+            //注册之后再查一次Redis，防止在注册之前已经加载完成，错过了通知
+            Object value = readRedis(policy, key, type);
+            if (value != null) {
+                return value;
+            }
+            loaded.get(LOAD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            return readRedis(policy, key, type);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        } finally {
+            loadedWaiters.remove(key, loaded);
         }
-        //6.存在，写入redis,并设置超时时间，30分钟，自动删除，再次访问时写入缓存
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(r), time, unit);
-        //7.返回
-        return r;
     }
 
-    //建立线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    //从Redis读取并放入本地缓存，返回对象、NULL_VALUE，没有缓存时返回null
+    private <R> Object readRedis(CachePolicy policy, String key, Class<R> type) {
+        byte[] bytes = bytesRedisTemplate.opsForValue().get(key);
+        Object value = bytes == null ? null : decode(key, bytes, type);
+        if (value != null) {
+            putLocal(policy, key, value);
+        }
+        return value;
+    }
 
-    //缓存击穿，逻辑过期时间解决
-    public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
-        //1.判断redis是否存在
-        String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if (StrUtil.isBlank(json)) {//判空：当参数是"",null,"\t\n"都是false，只有里面是真正的字符串，才是true
+    /**
+     * 批量查询，列表接口用：一次MGET查缓存，未命中的id用一次批量SQL查数据库，再用管道写回缓存
+     *
+     * @param keyPrefix       键的前缀
+     * @param ids             查找的id
+     * @param type            数据的类型
+     * @param dbBatchFallback 按id批量查找数据库的函数
+     * @param idOf            取出数据id的函数，用来把数据库结果对应回id
+     * @param time            过期时间
+     * @param unit            时间单位
+     * @return 和ids顺序一致，不存在的位置是null
+     */
+    public <R, ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, List<R>> dbBatchFallback,
+                                      Function<R, ID> idOf, Long time, TimeUnit unit) {
+        return getBatch(adHoc(CachePolicy.Mode.PASS_THROUGH, keyPrefix, time, unit), ids, type, dbBatchFallback, idOf);
+    }
+
+    /**
+     * 按策略批量查询，逻辑过期的策略不支持
+     *
+     * @return 和ids顺序一致，不存在的位置是null
+     */
+    public <R, ID> List<R> getBatch(CachePolicy policy, List<ID> ids, Class<R> type, Function<List<ID>, List<R>> dbBatchFallback,
+                                    Function<R, ID> idOf) {
+        if (policy.getMode() == CachePolicy.Mode.LOGICAL_EXPIRE) {
+            throw new IllegalArgumentException("逻辑过期的缓存不支持批量查询：" + policy.getName());
+        }
+        String keyPrefix = policy.getKeyPrefix();
+        Object[] values = new Object[ids.size()];
+        //1.先查布隆过滤器和本地缓存，剩下的去Redis
+        List<Integer> redisIndexes = new ArrayList<>();
+        List<String> redisKeys = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            ID id = ids.get(i);
+            if (!bloomFilters.mightContainKey(keyPrefix, id)) {
+                bloomRejects.increment();
+                values[i] = NULL_VALUE;
+                continue;
+            }
+            String key = keyPrefix + id;
+            Object local = getLocal(policy, key);
+            if (local != null) {
+                values[i] = local;
+                continue;
+            }
+            redisIndexes.add(i);
+            redisKeys.add(key);
+        }
+        //2.一次MGET
+        Map<ID, List<Integer>> misses = new LinkedHashMap<>();
+        if (!redisKeys.isEmpty()) {
+            List<byte[]> list = bytesRedisTemplate.opsForValue().multiGet(redisKeys);
+            for (int j = 0; j < redisKeys.size(); j++) {
+                int i = redisIndexes.get(j);
+                byte[] bytes = list == null ? null : list.get(j);
+                Object value = bytes == null ? null : decode(redisKeys.get(j), bytes, type);
+                if (value == null) {
+                    //同一个id可能出现多次，只查一次数据库
+                    misses.computeIfAbsent(ids.get(i), k -> new ArrayList<>()).add(i);
+                    continue;
+                }
+                if (value == NULL_VALUE) {
+                    redisNullHits.increment();
+                    policy.nullHits.increment();
+                } else {
+                    redisHits.increment();
+                    policy.l2Hits.increment();
+                }
+                values[i] = value;
+                putLocal(policy, redisKeys.get(j), value);
+            }
+        }
+        //3.查数据库的名额用完时，有旧值的id先返回旧值，剩下的等待名额
+        if (!misses.isEmpty() && !policy.tryAcquireLoad()) {
+            misses.entrySet().removeIf(e -> {
+                Object stale = staleCache.getIfPresent(keyPrefix + e.getKey());
+                if (stale == null) {
+                    return false;
+                }
+                policy.staleServes.increment();
+                e.getValue().forEach(i -> values[i] = stale);
+                return true;
+            });
+            if (!misses.isEmpty()) {
+                awaitLoadPermit(policy);
+            }
+        }
+        //4.未命中的id一次查数据库，用管道写回Redis，数据库中不存在的写空值
+        if (!misses.isEmpty()) {
+            try {
+                loadBatch(policy, misses, values, dbBatchFallback, idOf);
+            } finally {
+                policy.releaseLoad();
+            }
+        }
+        //5.按原来的顺序返回
+        List<R> result = new ArrayList<>(values.length);
+        for (Object value : values) {
+            result.add(value == NULL_VALUE ? null : type.cast(value));
+        }
+        return result;
+    }
+
+    //批量查数据库，写回Redis和本地缓存，结果填到values中
+    private <R, ID> void loadBatch(CachePolicy policy, Map<ID, List<Integer>> misses, Object[] values,
+                                   Function<List<ID>, List<R>> dbBatchFallback, Function<R, ID> idOf) {
+        String keyPrefix = policy.getKeyPrefix();
+        dbLoads.add(misses.size());
+        policy.dbLoads.add(misses.size());
+        Map<ID, R> loaded = new HashMap<>(misses.size());
+        for (R r : dbBatchFallback.apply(new ArrayList<>(misses.keySet()))) {
+            loaded.put(idOf.apply(r), r);
+        }
+        bytesRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            misses.keySet().forEach(id -> {
+                byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                R r = loaded.get(id);
+                if (r == null) {
+                    connection.stringCommands().setEx(rawKey, nullTtlSeconds(), NULL_BYTES);
+                } else {
+                    connection.stringCommands().setEx(rawKey, policy.nextTtlSeconds(), serializer.serialize(r));
+                }
+            });
+            return null;
+        });
+        misses.forEach((id, indexes) -> {
+            R r = loaded.get(id);
+            Object value = r == null ? NULL_VALUE : r;
+            putLocal(policy, keyPrefix + id, value);
+            indexes.forEach(i -> values[i] = value);
+        });
+    }
+
+    //缓存击穿，逻辑过期时间解决：Redis中的值不过期，过期后先返回旧值，再异步重建
+    private <R, ID> R queryLogical(CachePolicy policy, ID id, Class<R> type, Function<ID, R> dbFallback) {
+        String key = policy.getKeyPrefix() + id;
+        //1.先查本地缓存，本地缓存中存的是data已经转换好的RedisData
+        Object value = getLocal(policy, key);
+        if (value == null) {
+            //2.判断redis是否存在
+            byte[] bytes = bytesRedisTemplate.opsForValue().get(key);
+            value = bytes == null ? null : decode(key, bytes, RedisData.class);
+            if (value == null) {
+                //3.不存在(还没有预热)，同一个key的并发请求合并成一次加载
+                //同时查数据库的请求数有上限，满了先返回旧值
+                value = singleFlight.execute(key, () -> guardedLoad(policy, key, () -> loadLogical(policy, key, id, dbFallback)));
+            } else if (value == NULL_VALUE) {
+                redisNullHits.increment();
+                policy.nullHits.increment();
+            } else {
+                redisHits.increment();
+                policy.l2Hits.increment();
+                // 4.命中，二进制格式直接解码出对象；JSON格式的data是JSONObject(数组是JSONArray)，还要再转一次
+                RedisData redisData = (RedisData) value;
+                Object data = redisData.getData();
+                if (data != null && !type.isInstance(data)) {
+                    redisData.setData(((JSON) data).toBean(type));
+                }
+            }
+            putLocal(policy, key, value);
+        }
+        if (value == NULL_VALUE) {
             return null;
         }
-        // 4.命中，需更先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);//要经过两次转型，才能拿到Shop
-        // 5.判晰是否过期
+        RedisData redisData = (RedisData) value;
+        R r = type.cast(redisData.getData());
+        // 5.判晰是否过期，XFetch提前刷新：now - delta * beta * ln(random) >= expireTime 时就当作已过期
+        // 越接近过期时间、重建越慢(delta越大)，提前刷新的概率越高，热点key会在过期前被某个请求刷新掉
         LocalDateTime expireTime = redisData.getExpireTime();
-        if (expireTime.isAfter(LocalDateTime.now())) {//如果逻辑过期时间，在现在之后，说明还没有过期
-            // 5.1.未过期，直接返回店铺信息
+        LocalDateTime now = LocalDateTime.now();
+        long delta = redisData.getDelta() == null ? 0 : redisData.getDelta();
+        //1 - nextDouble() 的范围是(0, 1]，避免ln(0)
+        long early = (long) (-delta * xfetchBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+        if (expireTime.isAfter(now.plus(early, ChronoUnit.MILLIS))) {//如果逻辑过期时间，在现在之后，说明还没有过期
+            // 5.1.未过期，直接返回
             return r;
         }
-        // 5.2.已过期，需要缓存重建
+        // 5.2.已过期(或者提前刷新)，需要缓存重建
         // 6.缓存重建
+        rebuild(policy, key, id, dbFallback, expireTime.isAfter(now));
+        // 6.4.返回过期的数据
+        return r;
+    }
+
+    //查数据库，按逻辑过期写入Redis，返回RedisData或者NULL_VALUE
+    private <R, ID> Object loadLogical(CachePolicy policy, String key, ID id, Function<ID, R> dbFallback) {
+        dbLoads.increment();
+        policy.dbLoads.increment();
+        long begin = System.currentTimeMillis();
+        R r = dbFallback.apply(id);
+        if (r == null) {
+            bytesRedisTemplate.opsForValue().set(key, NULL_BYTES, nullTtlSeconds(), TimeUnit.SECONDS);
+            return NULL_VALUE;
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(r);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(policy.nextTtlSeconds()));
+        redisData.setDelta(System.currentTimeMillis() - begin);
+        bytesRedisTemplate.opsForValue().set(key, serializer.serialize(redisData));
+        return redisData;
+    }
+
+    //拿到互斥锁和策略的重建名额后，交给重建线程池；线程池满了就放弃，下一个请求再试
+    private <R, ID> void rebuild(CachePolicy policy, String key, ID id, Function<ID, R> dbFallback, boolean early) {
         // 6.1.获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        // 6.2.判断是否获取锁成功
-        if (isLock) {
-            // 6.3.成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+        String lockKey = LOCK_CACHE_KEY + key;
+        // 6.2.判断是否获取锁成功，同一类数据同时重建的key数量有上限
+        if (!policy.tryAcquireRebuild()) {
+            policy.rebuildRejects.increment();
+            return;
+        }
+        if (!tryLock(lockKey)) {
+            policy.releaseRebuild();
+            return;
+        }
+        if (early) {
+            earlyRefreshes.increment();
+        }
+        // 6.3.成功，交给重建线程池
+        try {
+            rebuildExecutor.execute(() -> {
                 try {
-                    //重置缓存
-                    //1.从数据库中查找
-                    R r1 = dbFallback.apply(id);
-                    //写入redis
-                    setWithLogicalExpire(key, r1, time, unit);
+                    //从数据库中查找，记录重建花费的时间，写入redis
+                    policy.rebuilds.increment();
+                    loadLogical(policy, key, id, dbFallback);
+                    //其它节点的本地缓存中还是旧的过期时间，删除掉
+                    evictLocal(key);
                 } catch (Exception e) {
-                    throw new RuntimeException();
+                    log.error("重建缓存{}失败", key, e);
                 } finally {
                     //释放锁
                     unLock(lockKey);
+                    policy.releaseRebuild();
                 }
-
             });
+        } catch (RejectedExecutionException e) {
+            policy.rebuildRejects.increment();
+            unLock(lockKey);
+            policy.releaseRebuild();
         }
-        // 6.4.返回过期的商铺信息
-        return r;
     }
 
     //尝试获取互斥锁
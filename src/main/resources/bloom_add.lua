@@ -0,0 +1,6 @@
+-- 布隆过滤器：把所有位置置为1
+-- KEYS[1]：bitmap的key，ARGV：位置
+for i = 1, #ARGV do
+    redis.call('setbit', KEYS[1], ARGV[i], 1)
+end
+return 1
@@ -0,0 +1,8 @@
+-- 布隆过滤器：所有位置都是1才可能存在
+-- KEYS[1]：bitmap的key，ARGV：位置
+for i = 1, #ARGV do
+    if (redis.call('getbit', KEYS[1], ARGV[i]) == 0) then
+        return 0
+    end
+end
+return 1
@@ -2372,7 +2372,9 @@ CREATE TABLE `tb_voucher_order`
     `use_time`    timestamp NULL DEFAULT NULL COMMENT '核销时间',
     `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
     `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-    PRIMARY KEY (`id`) USING BTREE
+    PRIMARY KEY (`id`) USING BTREE,
+    UNIQUE INDEX `uk_user_voucher` (`user_id`, `voucher_id`) USING BTREE,
+    INDEX `idx_voucher_id` (`voucher_id`, `id`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -0,0 +1,26 @@
+-- 把一条pending消息转入死信队列并确认，两步在一个脚本里完成
+-- KEYS[1]：消息队列，KEYS[2]：死信队列
+-- ARGV[1]：消费者组，ARGV[2]：消息id，ARGV[3]：投递次数，ARGV[4]：订单状态key前缀，ARGV[5]：订单状态过期时间
+local entries = redis.call('xrange', KEYS[1], ARGV[2], ARGV[2])
+if (#entries > 0) then
+    -- 原消息的字段，再加上原消息id和投递次数
+    local fields = entries[1][2]
+    table.insert(fields, 'sourceId')
+    table.insert(fields, ARGV[2])
+    table.insert(fields, 'deliveries')
+    table.insert(fields, ARGV[3])
+    -- 订单状态改为 F 失败，状态key按订单id的时间戳(id >> 32，单位秒)每小时一个桶
+    local orderId
+    for i = 1, #fields, 2 do
+        if (fields[i] == 'id') then
+            orderId = fields[i + 1]
+        end
+    end
+    redis.call('xadd', KEYS[2], '*', unpack(fields))
+    if (orderId) then
+        local statusKey = ARGV[4] .. math.floor(tonumber(orderId) / 4294967296 / 3600)
+        redis.call('hset', statusKey, orderId, 'F')
+        redis.call('expire', statusKey, ARGV[5])
+    end
+end
+return redis.call('xack', KEYS[1], ARGV[1], ARGV[2])
@@ -0,0 +1,2 @@
+-- 查询key占用的内存字节数 MEMORY USAGE key
+return redis.call('memory', 'usage', KEYS[1])
@@ -0,0 +1,6 @@
+-- 比较标示是否一致，一致才续期
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    -- 续期 expire key seconds
+    return redis.call('expire', KEYS[1], ARGV[2])
+end
+return 0
@@ -1,30 +1,41 @@
+--单key模式下的秒杀脚本，KEYS全部带同一个hash tag {优惠券id}，在Redis Cluster中落在同一个slot
+--这里只做扣库存和一人一单，生成订单id、发送消息、写订单状态由调用方在脚本成功之后另外执行
 --1.参数列表
---1.1.优惠券id
-local voucherId = ARGV[1]
---1.2.用户id
-local userId = ARGV[2]
---1.3.订单id
-local orderId = ARGV[3]
--- 2.数据key
---2.1.库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2.订单key        ..是拼接字符串的意思
-local orderKey = 'seckill:order:' .. voucherId
---3.脚本业务
---3.1.判断库存是否充足get stockKey
-if (tonumber(redis.call('get', stockKey)) <= 0) then
-    --3.2.库存不足，返回1
-    return 1
+--1.1.库存key
+local stockKey = KEYS[1]
+--1.2.订单key
+local orderKey = KEYS[2]
+--1.3.秒杀时间key
+local windowKey = KEYS[3]
+--1.4.用户id
+local userId = ARGV[1]
+--1.5.当前时间(秒)
+local now = tonumber(ARGV[2])
+--2.脚本业务
+--2.0.判断是否在秒杀时间内，没有设置的时间不限制
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if (window[1] and now < tonumber(window[1])) then
+    -- 还未开始，返回-4
+    return -4
 end
---3.2.判断用户是否下单SISMEMBER orderKey userId
+if (window[2] and now >= tonumber(window[2])) then
+    -- 已经结束，返回-5
+    return -5
+end
+--2.1.判断库存是否充足get stockKey，库存key不存在(还没有预热)也按库存不足处理
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil or stock <= 0) then
+    --库存不足，返回-1
+    return -1
+end
+--2.2.判断用户是否下单SISMEMBER orderKey userId
 if (redis.call('sismember', orderKey, userId) == 1) then
-    --如果不存在
-    return 2
+    --重复下单，返回-2
+    return -2
 end
---3.4.扣库存 incrby stockKey -1
+--2.3.扣库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
--- 3.5.下单 (保存用户)sadd orderKey userId
+--2.4.下单 (保存用户)sadd orderKey userId
 redis.call('sadd', orderKey, userId)
--- 3.6.发送消息到Redis的stream队列中XADD stream.orders * kI VI k2 V2
-redis.call('xadd', 'stream.orders', '*', 'voucherId', voucherId, 'userId', userId, 'id', orderId)
-return 0
+--返回1表示有购买资格
+return 1
@@ -0,0 +1,7 @@
+--从相邻分片借走一个库存，库存只在分片之间移动，总数不会变多
+local stock = tonumber(redis.call('get', KEYS[1]))
+if (stock == nil or stock <= 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], -1)
+return 1
@@ -0,0 +1,17 @@
+-- 秒杀准入的滑动窗口限流，所有节点共用一个窗口
+-- KEYS[1]：窗口key(zset，score是请求时间)
+-- ARGV[1]：当前时间(毫秒)，ARGV[2]：窗口长度(毫秒)，ARGV[3]：窗口内允许的请求数，ARGV[4]：本次请求的唯一标识
+local key = KEYS[1]
+local now = tonumber(ARGV[1])
+local window = tonumber(ARGV[2])
+local limit = tonumber(ARGV[3])
+-- 1.移除窗口之外的请求
+redis.call('zremrangebyscore', key, '-inf', now - window)
+-- 2.窗口已满，拒绝
+if (redis.call('zcard', key) >= limit) then
+    return 0
+end
+-- 3.记录本次请求
+redis.call('zadd', key, now, ARGV[4])
+redis.call('pexpire', key, window)
+return 1
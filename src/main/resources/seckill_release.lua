@@ -0,0 +1,8 @@
+-- 对账修复：把没有落库的用户从下单用户集合中移除，并归还库存
+-- KEYS[1]：下单用户key，KEYS[2]：库存key(同一个分片)
+-- ARGV[1]：用户id
+if (redis.call('srem', KEYS[1], ARGV[1]) == 1) then
+    redis.call('incrby', KEYS[2], 1)
+    return 1
+end
+return 0
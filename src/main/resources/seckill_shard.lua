@@ -0,0 +1,41 @@
+--分片库存模式下的秒杀脚本，KEYS全部带同一个hash tag {优惠券id:分片}，在Redis Cluster中落在同一个slot
+--这里只做扣库存和一人一单，生成订单id、发送消息、写订单状态由调用方在脚本成功之后另外执行
+--1.参数列表
+--1.1.分片库存key
+local stockKey = KEYS[1]
+--1.2.分片订单key
+local orderKey = KEYS[2]
+--1.3.分片秒杀时间key
+local windowKey = KEYS[3]
+--1.4.用户id
+local userId = ARGV[1]
+--1.5.从相邻分片借来的库存数量
+local carry = tonumber(ARGV[2])
+--1.6.当前时间(秒)
+local now = tonumber(ARGV[3])
+--2.借来的库存先存入本分片，和下单在同一个脚本里完成
+if (carry > 0) then
+    redis.call('incrby', stockKey, carry)
+end
+--3.判断是否在秒杀时间内，还未开始返回-4，已经结束返回-5
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if (window[1] and now < tonumber(window[1])) then
+    return -4
+end
+if (window[2] and now >= tonumber(window[2])) then
+    return -5
+end
+--3.1.判断用户是否下单SISMEMBER orderKey userId
+if (redis.call('sismember', orderKey, userId) == 1) then
+    return -2
+end
+--4.判断本分片库存是否充足
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil or stock <= 0) then
+    --本分片库存不足，返回-3，由调用方去相邻分片借库存
+    return -3
+end
+--5.扣库存、保存用户，返回1表示有购买资格
+redis.call('incrby', stockKey, -1)
+redis.call('sadd', orderKey, userId)
+return 1
@@ -0,0 +1,3 @@
+-- 从指定游标开始SSCAN一次，游标可以保存下来，下次接着扫描
+-- KEYS[1]：set的key，ARGV[1]：游标，ARGV[2]：count
+return redis.call('sscan', KEYS[1], ARGV[1], 'count', ARGV[2])
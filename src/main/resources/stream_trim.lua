@@ -0,0 +1,2 @@
+-- 近似删除id小于ARGV[1]的消息 XTRIM key MINID ~ id
+return redis.call('xtrim', KEYS[1], 'MINID', '~', ARGV[1])
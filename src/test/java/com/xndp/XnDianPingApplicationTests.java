@@ -1,31 +1,90 @@
 package com.xndp;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.xndp.dto.Result;
+import com.xndp.dto.UserDTO;
+import com.xndp.entity.Blog;
 import com.xndp.entity.Shop;
+import com.xndp.service.ISeckillVoucherService;
+import com.xndp.service.IShopTypeService;
+import com.xndp.service.IVoucherOrderService;
+import com.xndp.service.impl.SeckillVoucherServiceImpl;
 import com.xndp.service.impl.ShopServiceImpl;
+import com.xndp.utils.BinaryCacheCodec;
+import com.xndp.utils.CachePolicies;
+import com.xndp.utils.CachePolicy;
+import com.xndp.utils.CacheSerializer;
+import com.xndp.utils.HotKeyDetector;
+import com.xndp.utils.JsonCacheCodec;
 import com.xndp.utils.RedisConstants;
+import com.xndp.utils.RedisData;
 import com.xndp.utils.RedisIdWorker;
+import com.xndp.utils.ResponseCache;
+import com.xndp.utils.SeckillLimiter;
+import com.xndp.utils.SeckillOrderStatus;
+import com.xndp.utils.SeckillStock;
+import com.xndp.utils.SnowflakeIdGenerator;
+import com.xndp.utils.StreamTrimmer;
+import com.xndp.utils.UserHolder;
 import com.xndp.utils.cacheClient;
 import io.lettuce.core.api.sync.RedisGeoCommands;
+import io.lettuce.core.cluster.SlotHash;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.QueryTimeoutException;
 import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.data.redis.domain.geo.GeoLocation;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.annotation.Resource;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static com.xndp.utils.RedisConstants.CACHE_SHOP_KEY;
 import static com.xndp.utils.RedisConstants.SHOP_GEO_KEY;
+import static com.xndp.utils.RedisConstants.SHOP_TYPE_CHANGED_CHANNEL;
+import static com.xndp.utils.RedisConstants.SHOP_TYPE_VERSION_KEY;
 
 @SpringBootTest
 class XnDianPingApplicationTests {
@@ -37,6 +96,24 @@ class XnDianPingApplicationTests {
     private RedisIdWorker redisIdWorker;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IShopTypeService shopTypeService;
+    @Resource
+    private ObjectMapper objectMapper;
+    @Resource
+    private SeckillStock seckillStock;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private StreamTrimmer streamTrimmer;
+    @Resource
+    private SeckillLimiter seckillLimiter;
+    @Resource
+    private ResponseCache responseCache;
     //开启500个线程池
     private static final ExecutorService ex = Executors.newFixedThreadPool(500);
 
@@ -60,6 +137,497 @@ class XnDianPingApplicationTests {
         System.out.println("times = " + (end - start));
     }
 
+    //号段模式：号段很小，多线程生成时频繁换段，id必须全局唯一，并且每个线程拿到的id递增
+    //第二轮让异步预取全部失败，号段用完时同步再租，结果一样
+    @Test
+    void testSegmentIdWorker() throws InterruptedException {
+        assertSegmentIds(stringRedisTemplate, "segment-test");
+        //只有生成id的线程能访问Redis，预取线程的INCRBY全部失败
+        StringRedisTemplate failingPrefetch = new StringRedisTemplate(stringRedisTemplate.getConnectionFactory()) {
+            @Override
+            public ValueOperations<String, String> opsForValue() {
+                ValueOperations<String, String> ops = super.opsForValue();
+                return (ValueOperations<String, String>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class<?>[]{ValueOperations.class}, (proxy, method, args) -> {
+                            if ("increment".equals(method.getName())
+                                    && !Thread.currentThread().getName().startsWith("segment-test")) {
+                                throw new QueryTimeoutException("预取失败");
+                            }
+                            try {
+                                return method.invoke(ops, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        });
+            }
+        };
+        assertSegmentIds(failingPrefetch, "segment-test-prefetch");
+    }
+
+    private void assertSegmentIds(StringRedisTemplate template, String keyPrefix) throws InterruptedException {
+        int threads = 20;
+        int perThread = 1000;
+        int segmentSize = 50;
+        RedisIdWorker worker = new RedisIdWorker(template);
+        ReflectionTestUtils.setField(worker, "mode", "segment");
+        ReflectionTestUtils.setField(worker, "segmentSize", segmentSize);
+        String counterKey = worker.counterKey(keyPrefix, LocalDateTime.now());
+        stringRedisTemplate.delete(counterKey);
+
+        AtomicInteger threadNo = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads,
+                r -> new Thread(r, "segment-test-" + threadNo.incrementAndGet()));
+        Set<Long> all = ConcurrentHashMap.newKeySet();
+        ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+        CountDownLatch countDownLatch = new CountDownLatch(threads);
+        try {
+            for (int t = 0; t < threads; t++) {
+                pool.submit(() -> {
+                    try {
+                        long last = 0;
+                        for (int i = 0; i < perThread; i++) {
+                            long id = worker.nextId(keyPrefix);
+                            if (id <= last) {
+                                errors.add(Thread.currentThread().getName() + ": " + id + " <= " + last);
+                            }
+                            if (!all.add(id)) {
+                                errors.add("重复的id: " + id);
+                            }
+                            last = id;
+                        }
+                    } catch (Exception e) {
+                        errors.add(Thread.currentThread().getName() + ": " + e);
+                    } finally {
+                        countDownLatch.countDown();
+                    }
+                });
+            }
+            Assertions.assertTrue(countDownLatch.await(60, TimeUnit.SECONDS));
+            Assertions.assertTrue(errors.isEmpty(), () -> String.join("\n", errors));
+            Assertions.assertEquals(threads * perThread, all.size());
+            //换了很多次号段，租出去的序列号不少于生成的id数
+            long leased = Long.parseLong(stringRedisTemplate.opsForValue().get(counterKey));
+            Assertions.assertTrue(leased >= (long) threads * perThread);
+        } finally {
+            pool.shutdownNow();
+            stringRedisTemplate.delete(counterKey);
+        }
+    }
+
+
+    //单key库存和分片库存的秒杀吞吐对比，同时校验不超卖、一人一单
+    //使用不存在于数据库的优惠券id，消费者落库时会因为没有库存记录而丢弃这些订单
+    @Test
+    void testSeckillShardThroughput() throws InterruptedException {
+        int stock = 20000;
+        benchSeckill(9000001L, stock, 1);
+        benchSeckill(9000002L, stock, 8);
+    }
+
+    private void benchSeckill(Long voucherId, int stock, int shards) throws InterruptedException {
+        seckillStock.init(voucherId, stock, shards);
+        AtomicInteger success = new AtomicInteger();
+        AtomicInteger duplicate = new AtomicInteger();
+        CountDownLatch countDownLatch = new CountDownLatch(300);
+        Runnable task = () -> {
+            for (int i = 0; i < 100; i++) {
+                //每个用户下两次单，第二次必须被拒绝
+                long userId = ThreadLocalRandom.current().nextLong(1, 1000000000L);
+                for (int j = 0; j < 2; j++) {
+                    long r = seckillStock.tryAcquire(voucherId, userId);
+                    if (r > 0) {
+                        success.incrementAndGet();
+                    } else if (r == -2) {
+                        duplicate.incrementAndGet();
+                    }
+                }
+            }
+            countDownLatch.countDown();
+        };
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 300; i++) {
+            ex.submit(task);
+        }
+        countDownLatch.await();
+        long end = System.currentTimeMillis();
+        System.out.println("shards = " + shards + ", times = " + (end - start)
+                + ", success = " + success.get() + ", duplicate = " + duplicate.get());
+        Assertions.assertTrue(success.get() <= stock);
+        //清理
+        cleanSeckillKeys(voucherId, shards);
+    }
+
+    //单key模式的脚本只操作同一个slot的key；拿到的订单id按SeckillOrderStatus.keyOf能查到状态，死信脚本算出的状态桶和它一致
+    @Test
+    void testSeckillSingleKeyInOneSlot() {
+        Long voucherId = 9000004L;
+        int slot = SlotHash.getSlot(SeckillStock.stockKey(voucherId));
+        Assertions.assertEquals(slot, SlotHash.getSlot(SeckillStock.orderKey(voucherId)));
+        Assertions.assertEquals(slot, SlotHash.getSlot(SeckillStock.windowKey(voucherId)));
+        seckillStock.init(voucherId, 1, 1);
+        try {
+            long orderId = seckillStock.tryAcquire(voucherId, 1L);
+            Assertions.assertTrue(orderId > 0);
+            Assertions.assertEquals("0", stringRedisTemplate.opsForValue().get(SeckillStock.stockKey(voucherId)));
+            Assertions.assertEquals(Boolean.TRUE,
+                    stringRedisTemplate.opsForSet().isMember(SeckillStock.orderKey(voucherId), "1"));
+            //消费者可能已经把状态改成了P或F，但一定写在同一个桶里
+            Assertions.assertNotNull(stringRedisTemplate.opsForHash()
+                    .get(SeckillOrderStatus.keyOf(orderId), String.valueOf(orderId)));
+            //dead_letter.lua里的分桶算法
+            String bucket = stringRedisTemplate.execute(new DefaultRedisScript<>(
+                            "return string.format('%d', math.floor(tonumber(ARGV[1]) / 4294967296 / 3600))", String.class),
+                    Collections.emptyList(), String.valueOf(orderId));
+            Assertions.assertEquals(SeckillOrderStatus.keyOf(orderId), RedisConstants.SECKILL_ORDER_STATUS_KEY + bucket);
+        } finally {
+            cleanSeckillKeys(voucherId, 1);
+        }
+    }
+
+    //雪花算法和Redis自增(每个id一次INCR)生成id的速度对比
+    @Test
+    void testSnowflakeIdWorker() {
+        SnowflakeIdGenerator snowflake = new SnowflakeIdGenerator(stringRedisTemplate, 1672531200L);
+        snowflake.register();
+        //配置文件里是号段模式，这里固定用redis模式作为对比基准
+        RedisIdWorker incrWorker = new RedisIdWorker(stringRedisTemplate);
+        ReflectionTestUtils.setField(incrWorker, "mode", "redis");
+        try {
+            int n = 10000000;
+            Set<Long> sample = new HashSet<>();
+            long start = System.currentTimeMillis();
+            long last = 0;
+            for (int i = 0; i < n; i++) {
+                long id = snowflake.nextId();
+                Assertions.assertTrue(id > last);
+                last = id;
+                if (i % 1000 == 0) {
+                    sample.add(id);
+                }
+            }
+            long snowflakeTimes = System.currentTimeMillis() - start;
+            Assertions.assertEquals(n / 1000, sample.size());
+
+            int m = 10000;
+            start = System.currentTimeMillis();
+            for (int i = 0; i < m; i++) {
+                incrWorker.nextId("bench");
+            }
+            long redisTimes = System.currentTimeMillis() - start;
+            System.out.println("snowflake: " + n + " ids, times = " + snowflakeTimes
+                    + ", ids/s = " + n * 1000L / Math.max(snowflakeTimes, 1));
+            System.out.println("redis INCR: " + m + " ids, times = " + redisTimes
+                    + ", ids/s = " + m * 1000L / Math.max(redisTimes, 1));
+        } finally {
+            snowflake.release();
+            stringRedisTemplate.delete(incrWorker.counterKey("bench", LocalDateTime.now()));
+        }
+    }
+
+    //续期失败(Redis不可用)时租约不延长，超过租约后停止生成id；Redis恢复后重新抢占机器id
+    @Test
+    void testSnowflakeLeaseExpires() throws InterruptedException {
+        AtomicBoolean redisDown = new AtomicBoolean();
+        //续期脚本在redisDown时失败
+        StringRedisTemplate template = new StringRedisTemplate(stringRedisTemplate.getConnectionFactory()) {
+            @Override
+            public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+                if (redisDown.get()) {
+                    throw new QueryTimeoutException("Redis不可用");
+                }
+                return super.execute(script, keys, args);
+            }
+        };
+        //租期3秒，提前1秒到期
+        SnowflakeIdGenerator snowflake = new SnowflakeIdGenerator(template, 1672531200L, 3);
+        snowflake.register();
+        try {
+            long id = snowflake.nextId();
+            redisDown.set(true);
+            ReflectionTestUtils.invokeMethod(snowflake, "renew");
+            //还在租约内，可以继续生成
+            Assertions.assertTrue(snowflake.nextId() > id);
+            Thread.sleep(2500);
+            Assertions.assertThrows(IllegalStateException.class, snowflake::nextId);
+            //Redis恢复，key已经过期，续期失败后重新抢占
+            Thread.sleep(1000);
+            redisDown.set(false);
+            ReflectionTestUtils.invokeMethod(snowflake, "renew");
+            Assertions.assertTrue(snowflake.nextId() > id);
+        } finally {
+            snowflake.release();
+        }
+    }
+
+    //重启后还没有处理过秒杀请求，恢复任务接管pending消息时也要能下单(之前会因为没有代理对象而空指针，最终进入死信队列)
+    //使用不存在于数据库的优惠券id，订单因为没有库存记录被拒绝，状态应该是F，并且消息已经确认
+    @Test
+    void testRecoverPendingWithoutSeckill() {
+        Long voucherId = 9000003L;
+        long orderId = redisIdWorker.nextId("order");
+        Map<String, String> message = new HashMap<>();
+        message.put("voucherId", voucherId.toString());
+        message.put("userId", "1");
+        message.put("id", String.valueOf(orderId));
+        RecordId recordId = stringRedisTemplate.opsForStream()
+                .add(StreamRecords.mapBacked(message).withStreamKey("stream.orders"));
+        //读到一个不会再消费的消费者名下，模拟原消费者已经挂了；如果被本节点的消费者先读到，由消费者处理
+        List<MapRecord<String, Object, Object>> read = stringRedisTemplate.opsForStream().read(
+                Consumer.from("g1", "test-dead-consumer"),
+                StreamReadOptions.empty().count(1),
+                StreamOffset.create("stream.orders", ReadOffset.lastConsumed()));
+        Object target = AopTestUtils.getTargetObject(voucherOrderService);
+        Object claimIdleSeconds = ReflectionTestUtils.getField(target, "claimIdleSeconds");
+        try {
+            if (read != null && !read.isEmpty()) {
+                //空闲时间为0，马上接管
+                ReflectionTestUtils.setField(target, "claimIdleSeconds", 0L);
+                ReflectionTestUtils.invokeMethod(target, "recoverPendingList");
+            }
+            //等待消费者或恢复任务处理完
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!SeckillOrderStatus.FAILED.equals(seckillOrderStatus.get(orderId))
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            Assertions.assertEquals(SeckillOrderStatus.FAILED, seckillOrderStatus.get(orderId));
+            Assertions.assertTrue(stringRedisTemplate.opsForStream()
+                    .pending("stream.orders", "g1", org.springframework.data.domain.Range.closed(
+                            recordId.getValue(), recordId.getValue()), 1).isEmpty());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ReflectionTestUtils.setField(target, "claimIdleSeconds", claimIdleSeconds);
+            stringRedisTemplate.opsForStream().deleteConsumer("stream.orders", Consumer.from("g1", "test-dead-consumer"));
+        }
+    }
+
+    //强制预热中途失败：秒杀入口恢复打开，预热标记清除，并安排了重试
+    @Test
+    void testWarmUpFailsPartway() {
+        SeckillVoucherServiceImpl target = AopTestUtils.getTargetObject(seckillVoucherService);
+        SeckillVoucherServiceImpl failing = Mockito.spy(target);
+        //关闭秒杀入口、写入预热标记之后，查询秒杀券时失败
+        Mockito.doThrow(new IllegalStateException("模拟数据库异常")).when(failing).query();
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        ReflectionTestUtils.setField(failing, "reconcileScheduler", scheduler);
+        ReflectionTestUtils.setField(failing, "warmUpRetryScheduled", new AtomicBoolean());
+        ReflectionTestUtils.setField(failing, "warmUpRetrySeconds", 3600L);
+        boolean ready = seckillStock.isReady();
+        seckillStock.setReady(true);
+        try {
+            Assertions.assertThrows(IllegalStateException.class, () -> failing.warmUp(true));
+            Assertions.assertTrue(seckillStock.isReady());
+            Assertions.assertFalse(seckillStock.isWarming());
+            Assertions.assertEquals(1, scheduler.getQueue().size());
+        } finally {
+            scheduler.shutdownNow();
+            seckillStock.setReady(ready);
+        }
+    }
+
+    //售罄后本地短路：不再访问Redis，Redis里的库存被改动也不影响；补充库存后清除标记
+    //使用不存在于数据库的优惠券id
+    @Test
+    void testSeckillSoldOutShortCircuit() {
+        Long voucherId = 9000005L;
+        seckillStock.init(voucherId, 1, 1);
+        boolean ready = seckillStock.isReady();
+        seckillStock.setReady(true);
+        try {
+            Assertions.assertTrue(seckillStock.tryAcquire(voucherId, 1L) > 0);
+            Assertions.assertFalse(seckillStock.isSoldOut(voucherId));
+            Assertions.assertEquals(-1, seckillStock.tryAcquire(voucherId, 2L));
+            Assertions.assertTrue(seckillStock.isSoldOut(voucherId));
+            //直接改Redis里的库存，本地标记还在，请求不会走到脚本
+            stringRedisTemplate.opsForValue().set(SeckillStock.stockKey(voucherId), "5");
+            UserDTO user = new UserDTO();
+            user.setId(3L);
+            UserHolder.saveUser(user);
+            Result result = voucherOrderService.secKillVoucher(voucherId);
+            Assertions.assertFalse(result.getSuccess());
+            Assertions.assertEquals("库存不足", result.getErrorMsg());
+            Assertions.assertEquals("5", stringRedisTemplate.opsForValue().get(SeckillStock.stockKey(voucherId)));
+            Assertions.assertNotEquals(Boolean.TRUE,
+                    stringRedisTemplate.opsForSet().isMember(SeckillStock.orderKey(voucherId), "3"));
+            //补充库存后恢复下单
+            seckillStock.clearSoldOut(voucherId);
+            Assertions.assertFalse(seckillStock.isSoldOut(voucherId));
+            Assertions.assertTrue(seckillStock.tryAcquire(voucherId, 3L) > 0);
+        } finally {
+            UserHolder.removeUser();
+            seckillStock.setReady(ready);
+            seckillStock.clearSoldOut(voucherId);
+            cleanSeckillKeys(voucherId, 1);
+        }
+    }
+
+    //XTRIM的水位线取所有消费者组里最小的(最早的pending消息，last-delivered-id)，没有确认的消息一条都不能删
+    @Test
+    void testStreamTrimWatermark() {
+        String key = "test:stream.trim";
+        stringRedisTemplate.delete(key);
+        List<RecordId> ids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            ids.add(stringRedisTemplate.opsForStream().add(StreamRecords
+                    .mapBacked(Collections.singletonMap("i", String.valueOf(i))).withStreamKey(key)));
+        }
+        try {
+            stringRedisTemplate.opsForStream().createGroup(key, ReadOffset.from("0"), "a");
+            stringRedisTemplate.opsForStream().createGroup(key, ReadOffset.from("0"), "b");
+            //a组全部读完并确认；b组读了前500条，只确认了前400条
+            stringRedisTemplate.opsForStream().read(Consumer.from("a", "c1"),
+                    StreamReadOptions.empty().count(1000), StreamOffset.create(key, ReadOffset.lastConsumed()));
+            stringRedisTemplate.opsForStream().acknowledge(key, "a", ids.toArray(new RecordId[0]));
+            stringRedisTemplate.opsForStream().read(Consumer.from("b", "c1"),
+                    StreamReadOptions.empty().count(500), StreamOffset.create(key, ReadOffset.lastConsumed()));
+            stringRedisTemplate.opsForStream().acknowledge(key, "b", ids.subList(0, 400).toArray(new RecordId[0]));
+            //水位线是b组最早的pending消息(第400条)，MINID ~ 只删除整个节点，最多删400条
+            long trimmed = streamTrimmer.trimAcknowledged(key);
+            Assertions.assertTrue(trimmed > 0 && trimmed <= 400, "trimmed = " + trimmed);
+            Assertions.assertEquals(1000 - trimmed, stringRedisTemplate.opsForStream().size(key));
+            //b组的100条pending和500条还没有投递的都还在
+            List<RecordId> unacknowledged = new ArrayList<>();
+            Assertions.assertTrue(streamTrimmer.forEachUnacknowledged(key, "b", Long.MAX_VALUE,
+                    record -> unacknowledged.add(record.getId())));
+            Assertions.assertEquals(ids.subList(400, 1000), unacknowledged);
+        } finally {
+            stringRedisTemplate.delete(key);
+        }
+    }
+
+    //订单状态：拿到购买资格后是排队中，消费者处理后改为最终状态；Redis里没有的状态异步回查数据库，查不到的不写
+    //使用不存在于数据库的优惠券id，消费者会因为没有库存记录拒绝订单
+    @Test
+    void testSeckillOrderStatusLifecycle() throws InterruptedException {
+        Long voucherId = 9000006L;
+        seckillStock.init(voucherId, 1, 1);
+        try {
+            long orderId = seckillStock.tryAcquire(voucherId, 1L);
+            Assertions.assertTrue(orderId > 0);
+            String status = seckillOrderStatus.get(orderId);
+            Assertions.assertTrue(SeckillOrderStatus.QUEUED.equals(status) || SeckillOrderStatus.FAILED.equals(status));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!SeckillOrderStatus.FAILED.equals(seckillOrderStatus.get(orderId))
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            Result result = voucherOrderService.queryOrderStatus(orderId);
+            Assertions.assertTrue(result.getSuccess());
+            Assertions.assertEquals("FAILED", result.getData());
+            //一人一单没有写入的订单是DUPLICATE
+            seckillOrderStatus.markDuplicate(Collections.singletonList(orderId));
+            Assertions.assertEquals("DUPLICATE", voucherOrderService.queryOrderStatus(orderId).getData());
+            //状态过期后先返回查询中，数据库里没有这个订单，回查之后也不补写
+            stringRedisTemplate.opsForHash().delete(SeckillOrderStatus.keyOf(orderId), String.valueOf(orderId));
+            Assertions.assertFalse(voucherOrderService.queryOrderStatus(orderId).getSuccess());
+            Thread.sleep(500);
+            Assertions.assertNull(seckillOrderStatus.get(orderId));
+        } finally {
+            cleanSeckillKeys(voucherId, 1);
+        }
+    }
+
+    //准入限流：按优惠券配置每个窗口最多放行5个请求，连续20个请求只放行5个，其余被本地令牌桶或集群窗口拒绝
+    @Test
+    void testSeckillLimiterRejectsOverRate() {
+        Long voucherId = 9000007L;
+        String confKey = RedisConstants.SECKILL_LIMITER_CONF_KEY + voucherId;
+        stringRedisTemplate.opsForHash().put(confKey, "limit", "5");
+        try {
+            long start = System.currentTimeMillis();
+            int accepted = 0;
+            for (int i = 0; i < 20; i++) {
+                if (seckillLimiter.tryAcquire(voucherId)) {
+                    accepted++;
+                }
+            }
+            //集群窗口1秒，整个循环在一个窗口内完成时正好放行5个
+            if (System.currentTimeMillis() - start < 1000) {
+                Assertions.assertEquals(5, accepted);
+            }
+            Map<String, Object> stats = seckillLimiter.stats().get(voucherId);
+            Assertions.assertEquals(5L, stats.get("limit"));
+            Assertions.assertEquals(20L - accepted,
+                    (Long) stats.get("rejectedLocal") + (Long) stats.get("rejectedCluster"));
+        } finally {
+            stringRedisTemplate.delete(Arrays.asList(confKey, RedisConstants.SECKILL_LIMITER_KEY + voucherId));
+        }
+    }
+
+    //秒杀时间在脚本里判断：还未开始返回-4，已经结束返回-5，单key和分片模式一样，被拒绝的请求不扣库存
+    @Test
+    void testSeckillTimeWindow() {
+        Long voucherId = 9000008L;
+        LocalDateTime now = LocalDateTime.now();
+        try {
+            for (int shards : new int[]{1, 4}) {
+                seckillStock.init(voucherId, 10, shards, now.plusHours(1), now.plusHours(2));
+                Assertions.assertEquals(-4, seckillStock.tryAcquire(voucherId, 1L));
+                seckillStock.init(voucherId, 10, shards, now.minusHours(2), now.minusHours(1));
+                Assertions.assertEquals(-5, seckillStock.tryAcquire(voucherId, 1L));
+                Assertions.assertEquals(10, seckillStock.remaining(voucherId));
+                seckillStock.init(voucherId, 10, shards, now.minusHours(1), now.plusHours(1));
+                Assertions.assertTrue(seckillStock.tryAcquire(voucherId, 1L) > 0);
+                Assertions.assertEquals(9, seckillStock.remaining(voucherId));
+                cleanSeckillKeys(voucherId, shards);
+            }
+        } finally {
+            cleanSeckillKeys(voucherId, 4);
+        }
+    }
+
+    private void cleanSeckillKeys(Long voucherId, int shards) {
+        List<String> keys = new ArrayList<>();
+        keys.add(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        keys.add(SeckillStock.stockKey(voucherId));
+        keys.add(SeckillStock.orderKey(voucherId));
+        keys.add(SeckillStock.windowKey(voucherId));
+        for (int i = 0; i < shards; i++) {
+            keys.add(SeckillStock.stockKey(voucherId, i));
+            keys.add(SeckillStock.orderKey(voucherId, i));
+            keys.add(SeckillStock.windowKey(voucherId, i));
+        }
+        stringRedisTemplate.delete(keys);
+    }
+
+    //对账：库存差异连续两次相同才修复，两次之间差异变了说明还有并发干扰，不修复
+    //使用不存在于数据库的优惠券id，数据库一侧的 库存 + 订单数 为0
+    @Test
+    void testReconcileRepairsStableDriftOnly() throws ReflectiveOperationException {
+        Long voucherId = 9000009L;
+        SeckillVoucherServiceImpl target = AopTestUtils.getTargetObject(seckillVoucherService);
+        Map<Long, Object> states = (Map<Long, Object>) ReflectionTestUtils.getField(target, "reconcileStates");
+        Constructor<?> constructor = Class.forName(SeckillVoucherServiceImpl.class.getName() + "$ReconcileState")
+                .getDeclaredConstructor();
+        constructor.setAccessible(true);
+        states.put(voucherId, constructor.newInstance());
+        seckillStock.init(voucherId, 3, 1);
+        try {
+            //1.第一次发现差异，只记录
+            Map<String, Object> report = reconcileOnce(target, voucherId);
+            Assertions.assertEquals(3L, report.get("stockDrift"));
+            Assertions.assertFalse(report.containsKey("stockRepaired"));
+            //2.差异变了，仍然不修复
+            stringRedisTemplate.opsForValue().set(SeckillStock.stockKey(voucherId), "5");
+            report = reconcileOnce(target, voucherId);
+            Assertions.assertEquals(5L, report.get("stockDrift"));
+            Assertions.assertFalse(report.containsKey("stockRepaired"));
+            //3.连续两次相同，修复
+            report = reconcileOnce(target, voucherId);
+            Assertions.assertEquals(-5L, report.get("stockRepaired"));
+            Assertions.assertEquals("0", stringRedisTemplate.opsForValue().get(SeckillStock.stockKey(voucherId)));
+            Assertions.assertEquals(0L, reconcileOnce(target, voucherId).get("stockDrift"));
+        } finally {
+            states.remove(voucherId);
+            cleanSeckillKeys(voucherId, 1);
+        }
+    }
+
+    private Map<String, Object> reconcileOnce(SeckillVoucherServiceImpl target, Long voucherId) {
+        return ReflectionTestUtils.invokeMethod(target, "reconcile", voucherId, true,
+                Collections.emptyMap(), Collections.emptyMap());
+    }
 
     @Test
     void saveTest() {
@@ -67,6 +635,326 @@ class XnDianPingApplicationTests {
         cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + 1L, shop, 10l, TimeUnit.SECONDS);
     }
 
+    //缓存值JSON和二进制编码的大小、编解码速度对比，压缩阈值64字节
+    @Test
+    void testCacheCodec() {
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        Shop shop = new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078).setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37)
+                .setOpenHours("10:00-22:00").setCreateTime(now).setUpdateTime(now);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            content.append("生活就是一半烟火，一半诗意。手执烟火谋生活，心怀诗意以谋爱。");
+        }
+        Blog blog = new Blog().setId(4L).setShopId(4L).setUserId(2L).setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯")
+                .setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg").setContent(content.toString())
+                .setLiked(1).setComments(104).setCreateTime(now).setUpdateTime(now);
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(now);
+        redisData.setDelta(12L);
+
+        CacheSerializer[] serializers = {
+                new CacheSerializer(new JsonCacheCodec(), 0),
+                new CacheSerializer(new BinaryCacheCodec(), 0),
+                new CacheSerializer(new JsonCacheCodec(), 64),
+                new CacheSerializer(new BinaryCacheCodec(), 64)
+        };
+        String[] names = {"json", "binary", "json+deflate", "binary+deflate"};
+        for (int i = 0; i < serializers.length; i++) {
+            Assertions.assertEquals(shop, serializers[i].deserialize(serializers[i].serialize(shop), Shop.class));
+            Assertions.assertEquals(blog, serializers[i].deserialize(serializers[i].serialize(blog), Blog.class));
+            benchCodec(names[i] + " shop", serializers[i], shop, Shop.class);
+            benchCodec(names[i] + " blog", serializers[i], blog, Blog.class);
+            benchCodec(names[i] + " logical", serializers[i], redisData, RedisData.class);
+        }
+    }
+
+    private <T> void benchCodec(String name, CacheSerializer serializer, T value, Class<T> type) {
+        int n = 200000;
+        byte[] bytes = serializer.serialize(value);
+        //预热
+        for (int i = 0; i < n / 10; i++) {
+            serializer.deserialize(serializer.serialize(value), type);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            bytes = serializer.serialize(value);
+        }
+        long encode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            serializer.deserialize(bytes, type);
+        }
+        long decode = System.nanoTime() - start;
+        System.out.println(name + ": bytes = " + bytes.length
+                + ", encode ns/op = " + encode / n + ", decode ns/op = " + decode / n);
+    }
+
+    //同一个key的并发未命中合并成一次加载：20个线程同时查询，只查一次数据库，所有线程拿到同一个结果
+    @Test
+    void testSingleFlightLoadsOnce() throws InterruptedException {
+        String keyPrefix = "test:single-flight:";
+        Long id = 1L;
+        cacheClient.delete(keyPrefix + id);
+        AtomicInteger loads = new AtomicInteger();
+        Function<Long, Shop> loader = shopId -> {
+            loads.incrementAndGet();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new Shop().setId(shopId).setName("single-flight");
+        };
+        int threads = 20;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        ConcurrentLinkedQueue<Shop> results = new ConcurrentLinkedQueue<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                pool.submit(() -> {
+                    try {
+                        start.await();
+                        results.add(cacheClient.queryWithPassThrough(keyPrefix, id, Shop.class, loader, 10L, TimeUnit.MINUTES));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            start.countDown();
+            Assertions.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assertions.assertEquals(1, loads.get());
+            Assertions.assertEquals(threads, results.size());
+            results.forEach(shop -> Assertions.assertEquals("single-flight", shop.getName()));
+        } finally {
+            pool.shutdownNow();
+            cacheClient.delete(keyPrefix + id);
+        }
+    }
+
+    //XFetch：逻辑过期之前，上次重建越慢(delta越大)越早刷新；delta为0时到期之前不刷新
+    @Test
+    void testLogicalExpireEarlyRefresh() throws InterruptedException {
+        String keyPrefix = "test:xfetch:";
+        AtomicInteger loads = new AtomicInteger();
+        Function<Long, Shop> loader = id -> new Shop().setId(id).setName("v" + loads.incrementAndGet());
+        try {
+            //1.还有1小时才过期，上次重建没有耗时，不刷新
+            cacheClient.setWithLogicalExpire(keyPrefix + 1, new Shop().setId(1L).setName("v0"), 1L, TimeUnit.HOURS, 0L);
+            Assertions.assertEquals("v0", cacheClient.queryWithLogicalExpire(keyPrefix, 1L, Shop.class, loader,
+                    1L, TimeUnit.HOURS).getName());
+            Thread.sleep(500);
+            Assertions.assertEquals(0, loads.get());
+            //2.还有1秒才过期，但上次重建花了1小时，几乎一定提前刷新(不刷新的概率约0.03%)：先返回旧值，后台重建
+            cacheClient.setWithLogicalExpire(keyPrefix + 2, new Shop().setId(2L).setName("v0"), 1L, TimeUnit.SECONDS,
+                    TimeUnit.HOURS.toMillis(1));
+            Assertions.assertEquals("v0", cacheClient.queryWithLogicalExpire(keyPrefix, 2L, Shop.class, loader,
+                    1L, TimeUnit.HOURS).getName());
+            long deadline = System.currentTimeMillis() + 3000;
+            while (loads.get() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assertions.assertEquals(1, loads.get());
+        } finally {
+            cacheClient.delete(keyPrefix + 1);
+            cacheClient.delete(keyPrefix + 2);
+        }
+    }
+
+    //批量查询：结果和ids顺序一致，数据库里没有的位置是null；第二次只查缓存，数据库函数不再被调用
+    @Test
+    void testGetBatchKeepsOrderAndNulls() {
+        String keyPrefix = "test:batch:";
+        List<Long> ids = Arrays.asList(3L, 1L, 99L, 2L);
+        List<List<Long>> queried = new ArrayList<>();
+        //数据库按id升序返回，并且没有99
+        Function<List<Long>, List<Shop>> loader = missing -> {
+            queried.add(new ArrayList<>(missing));
+            return missing.stream().filter(id -> id != 99L).sorted()
+                    .map(id -> new Shop().setId(id).setName("shop" + id)).collect(Collectors.toList());
+        };
+        ids.forEach(id -> cacheClient.delete(keyPrefix + id));
+        try {
+            for (int round = 0; round < 2; round++) {
+                List<Shop> shops = cacheClient.queryBatch(keyPrefix, ids, Shop.class, loader, Shop::getId, 10L, TimeUnit.MINUTES);
+                Assertions.assertEquals(ids.size(), shops.size());
+                Assertions.assertEquals("shop3", shops.get(0).getName());
+                Assertions.assertEquals("shop1", shops.get(1).getName());
+                Assertions.assertNull(shops.get(2));
+                Assertions.assertEquals("shop2", shops.get(3).getName());
+            }
+            //第一次查了全部4个id，第二次全部命中缓存(包括99的空值)
+            Assertions.assertEquals(1, queried.size());
+            Assertions.assertEquals(new HashSet<>(ids), new HashSet<>(queried.get(0)));
+        } finally {
+            ids.forEach(id -> cacheClient.delete(keyPrefix + id));
+        }
+    }
+
+    //按策略查询：第一次查数据库并写入策略前缀下的Redis键，第二次不再查数据库；evict后重新加载；按参数查询的统计出现在policies中
+    @Test
+    void testCachePolicyEngine() {
+        CachePolicy policy = CachePolicy.passThrough("test", "test:policy:", 10, TimeUnit.MINUTES);
+        Long id = 1L;
+        String key = policy.getKeyPrefix() + id;
+        AtomicInteger loads = new AtomicInteger();
+        Function<Long, Shop> loader = i -> {
+            loads.incrementAndGet();
+            return new Shop().setId(i).setName("policy" + i);
+        };
+        cacheClient.delete(key);
+        try {
+            Assertions.assertEquals("policy1", cacheClient.get(policy, id, Shop.class, loader).getName());
+            Assertions.assertEquals(Boolean.TRUE, stringRedisTemplate.hasKey(key));
+            Assertions.assertEquals("policy1", cacheClient.get(policy, id, Shop.class, loader).getName());
+            Assertions.assertEquals(1, loads.get());
+            cacheClient.evict(policy, id);
+            Assertions.assertNotNull(cacheClient.get(policy, id, Shop.class, loader));
+            Assertions.assertEquals(2, loads.get());
+
+            //按参数查询会生成一个临时策略，名字是前缀(模式, 秒数)
+            cacheClient.queryWithPassThrough(policy.getKeyPrefix(), id, Shop.class, loader, 600L, TimeUnit.SECONDS);
+            Map<?, ?> policies = (Map<?, ?>) cacheClient.stats().get("policies");
+            Map<?, ?> adHoc = (Map<?, ?>) policies.get("test:policy:(PASS_THROUGH, 600s)");
+            Assertions.assertNotNull(adHoc);
+            Assertions.assertEquals(CachePolicy.Mode.PASS_THROUGH, adHoc.get("mode"));
+            Assertions.assertEquals(600L, adHoc.get("ttlSeconds"));
+            Assertions.assertTrue(policies.keySet().containsAll(
+                    Arrays.stream(CachePolicies.ALL).map(CachePolicy::getName).collect(Collectors.toList())));
+        } finally {
+            cacheClient.delete(key);
+        }
+    }
+
+    //过期时间随机浮动：100秒±20%，每次都在[80, 120]内且不全相同；写入Redis的过期时间也在范围内
+    @Test
+    void testTtlJitterBounds() {
+        CachePolicy policy = CachePolicy.passThrough("test-jitter", "test:jitter:", 100, TimeUnit.SECONDS).jitter(0.2);
+        Set<Long> seen = new HashSet<>();
+        for (int i = 0; i < 10000; i++) {
+            long ttl = policy.nextTtlSeconds();
+            Assertions.assertTrue(ttl >= 80 && ttl <= 120, "ttl out of range: " + ttl);
+            seen.add(ttl);
+        }
+        Assertions.assertTrue(seen.size() > 1);
+        //不浮动时固定返回原值
+        Assertions.assertEquals(100L, CachePolicy.passThrough("test", "test:", 100, TimeUnit.SECONDS).nextTtlSeconds());
+
+        String key = policy.getKeyPrefix() + 1;
+        cacheClient.delete(key);
+        try {
+            cacheClient.get(policy, 1L, Shop.class, id -> new Shop().setId(id));
+            Long expire = stringRedisTemplate.getExpire(key, TimeUnit.SECONDS);
+            Assertions.assertNotNull(expire);
+            Assertions.assertTrue(expire >= 78 && expire <= 120, "redis ttl out of range: " + expire);
+        } finally {
+            cacheClient.delete(key);
+        }
+    }
+
+    //店铺类型快照：版本不变时每次返回同一个不可修改的列表和序列化好的JSON；收到版本变更通知后换成新的快照
+    @Test
+    void testShopTypeSnapshotSwap() throws Exception {
+        List<?> types = (List<?>) shopTypeService.queryType().getData();
+        Assertions.assertSame(types, shopTypeService.queryType().getData());
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> types.remove(0));
+        Assertions.assertArrayEquals(objectMapper.writeValueAsBytes(Result.ok(types)), shopTypeService.queryTypeJson());
+
+        //模拟其它节点修改了店铺类型：版本号加1并发布通知
+        Long version = stringRedisTemplate.opsForValue().increment(SHOP_TYPE_VERSION_KEY);
+        stringRedisTemplate.convertAndSend(SHOP_TYPE_CHANGED_CHANNEL, String.valueOf(version));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (shopTypeService.queryType().getData() == types && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        List<?> reloaded = (List<?>) shopTypeService.queryType().getData();
+        Assertions.assertNotSame(types, reloaded);
+        Assertions.assertEquals(types, reloaded);
+        Assertions.assertArrayEquals(objectMapper.writeValueAsBytes(Result.ok(reloaded)), shopTypeService.queryTypeJson());
+    }
+
+    //响应缓存：第一次返回200和ETag；带相同If-None-Match返回304且不再生成响应；删除后重新生成，旧ETag返回200；失败的响应不缓存
+    @Test
+    void testResponseCacheEtag() {
+        String key = "test:resp:1";
+        AtomicInteger loads = new AtomicInteger();
+        Supplier<Result> loader = () -> Result.ok("v" + loads.incrementAndGet());
+        responseCache.evict(key);
+        try {
+            ResponseEntity<byte[]> first = responseCache.get(key, null, loader);
+            String etag = first.getHeaders().getETag();
+            Assertions.assertEquals(HttpStatus.OK, first.getStatusCode());
+            Assertions.assertNotNull(etag);
+            Assertions.assertNotNull(first.getBody());
+
+            ResponseEntity<byte[]> cached = responseCache.get(key, etag, loader);
+            Assertions.assertEquals(HttpStatus.NOT_MODIFIED, cached.getStatusCode());
+            Assertions.assertNull(cached.getBody());
+            Assertions.assertEquals(etag, cached.getHeaders().getETag());
+            Assertions.assertEquals(1, loads.get());
+
+            //数据修改后删除，内容变了，旧的ETag不再匹配
+            responseCache.evict(key);
+            ResponseEntity<byte[]> reloaded = responseCache.get(key, etag, loader);
+            Assertions.assertEquals(HttpStatus.OK, reloaded.getStatusCode());
+            Assertions.assertNotEquals(etag, reloaded.getHeaders().getETag());
+            Assertions.assertEquals(2, loads.get());
+
+            //失败的响应每次都重新生成
+            String failKey = "test:resp:fail";
+            AtomicInteger failLoads = new AtomicInteger();
+            for (int i = 0; i < 2; i++) {
+                responseCache.get(failKey, null, () -> {
+                    failLoads.incrementAndGet();
+                    return Result.fail("店铺不存在");
+                });
+            }
+            Assertions.assertEquals(2, failLoads.get());
+        } finally {
+            responseCache.evict(key);
+        }
+    }
+
+    //热点key：窗口内访问次数达到阈值时成为热点，窗口滑过后移出；缓存查询会记录访问，大量访问的key出现在hotKeys中
+    @Test
+    void testHotKeyPromotion() {
+        HotKeyDetector detector = new HotKeyDetector(1.0, 100, 10);
+        String key = "test:hot:detector";
+        for (int i = 0; i < 99; i++) {
+            Assertions.assertFalse(detector.record(key));
+        }
+        Assertions.assertTrue(detector.record(key));
+        Assertions.assertTrue(detector.isHot(key));
+        Assertions.assertFalse(detector.isHot("test:hot:other"));
+        //访问都在第一段，前SLOTS - 1次前进后仍在窗口内
+        for (int i = 0; i < HotKeyDetector.SLOTS - 1; i++) {
+            Assertions.assertTrue(detector.rotate().isEmpty());
+            Assertions.assertTrue(detector.isHot(key));
+        }
+        Assertions.assertEquals(Collections.singletonList(key), detector.rotate());
+        Assertions.assertFalse(detector.isHot(key));
+
+        //端到端：同一个key查询20000次，按采样率换算后超过阈值
+        String keyPrefix = "test:hot:";
+        Long id = 1L;
+        cacheClient.delete(keyPrefix + id);
+        try {
+            for (int i = 0; i < 20000; i++) {
+                cacheClient.queryWithPassThrough(keyPrefix, id, Shop.class, shopId -> new Shop().setId(shopId), 10L, TimeUnit.MINUTES);
+            }
+            List<?> keys = (List<?>) cacheClient.hotKeys().get("keys");
+            Assertions.assertTrue(keys.stream().anyMatch(item -> (keyPrefix + id).equals(((Map<?, ?>) item).get("key"))));
+        } finally {
+            cacheClient.delete(keyPrefix + id);
+        }
+    }
+
     @Test
     void loadShopData() {
         // 1.查询店铺信息